@@ -0,0 +1,60 @@
+package tui;
+
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying a new rendering to the document: replacing the whole text versus {@link Tui#replaceChangedLines}.
+ * A changed line is the typical refresh after a file change, a shifted window is the worst case for patching.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentBenchmark {
+  @Param({"2000", "5000"})
+  public int lines;
+
+  @Param({"LINE", "SHIFT"})
+  public String change;
+
+  private String myOldText;
+  private String myNewText;
+  private DocumentImpl myDocument;
+
+  @Setup
+  public void setUp() {
+    myOldText = printLines(0, lines, -1);
+    myNewText = change.equals("LINE") ? printLines(0, lines, lines / 2) : printLines(200, lines, -1);
+  }
+
+  @Setup(Level.Invocation)
+  public void resetDocument() {
+    // the document is not bound to EDT, so it can be modified without the IDE application
+    myDocument = new DocumentImpl(myOldText, true);
+  }
+
+  @Benchmark
+  public long replaceAll() {
+    myDocument.replaceString(0, myDocument.getTextLength(), myNewText);
+    return myDocument.getModificationStamp();
+  }
+
+  @Benchmark
+  public long replaceChangedLines() {
+    Tui.replaceChangedLines(myDocument, myNewText);
+    return myDocument.getModificationStamp();
+  }
+
+  private static String printLines(int start, int count, int changedLine) {
+    StringBuilder text = new StringBuilder();
+    for (int i = start; i < start + count; i++) {
+      text.append("file-").append(i).append(i == changedLine ? ".bak" : ".txt").append('\n');
+    }
+    return text.toString();
+  }
+}
@@ -0,0 +1,123 @@
+package tui;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileSystem;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * In-memory file for benchmarks which run without the IDE application. It has no VFS id,
+ * so listings of fake files keep file objects instead of ids.
+ */
+final class FakeFile extends VirtualFile {
+  private final String myName;
+  private final FakeFile myParent;
+  private final boolean myDirectory;
+  private final long myLength;
+  private VirtualFile[] myChildren = EMPTY_ARRAY;
+
+  FakeFile(@NotNull String name, @Nullable FakeFile parent, boolean directory, long length) {
+    myName = name;
+    myParent = parent;
+    myDirectory = directory;
+    myLength = length;
+  }
+
+  /**
+   * Creates /bench/dir with the given number of children with random names, every tenth child is a directory
+   */
+  static @NotNull FakeFile createDir(int childCount, long seed) {
+    FakeFile dir = new FakeFile("dir", new FakeFile("bench", new FakeFile("", null, true, 0), true, 0), true, 0);
+    Random random = new Random(seed);
+    List<VirtualFile> children = new ArrayList<>(childCount);
+    for (int i = 0; i < childCount; i++) {
+      children.add(new FakeFile(randomName(random) + "-" + i, dir, i % 10 == 0, random.nextInt(1 << 20)));
+    }
+    dir.myChildren = children.toArray(EMPTY_ARRAY);
+    return dir;
+  }
+
+  private static @NotNull String randomName(@NotNull Random random) {
+    char[] chars = new char[4 + random.nextInt(20)];
+    for (int i = 0; i < chars.length; i++) {
+      int c = random.nextInt(36);
+      chars[i] = (char) (c < 26 ? (random.nextBoolean() ? 'a' : 'A') + c : '0' + c - 26);
+    }
+    return new String(chars);
+  }
+
+  @Override
+  public @NotNull String getName() {
+    return myName;
+  }
+
+  @Override
+  public @NotNull VirtualFileSystem getFileSystem() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public @NotNull String getPath() {
+    return myParent == null ? "/" : myParent.myParent == null ? "/" + myName : myParent.getPath() + "/" + myName;
+  }
+
+  @Override
+  public boolean isWritable() {
+    return false;
+  }
+
+  @Override
+  public boolean isDirectory() {
+    return myDirectory;
+  }
+
+  @Override
+  public boolean isValid() {
+    return true;
+  }
+
+  @Override
+  public @Nullable VirtualFile getParent() {
+    return myParent;
+  }
+
+  @Override
+  public VirtualFile[] getChildren() {
+    return myChildren;
+  }
+
+  @Override
+  public @NotNull OutputStream getOutputStream(Object requestor, long newModificationStamp, long newTimeStamp) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public byte @NotNull [] contentsToByteArray() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public long getTimeStamp() {
+    return 0;
+  }
+
+  @Override
+  public long getLength() {
+    return myLength;
+  }
+
+  @Override
+  public void refresh(boolean asynchronous, boolean recursive, @Nullable Runnable postRunnable) {
+  }
+
+  @Override
+  public @NotNull InputStream getInputStream() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,57 @@
+package tui;
+
+import com.intellij.openapi.util.UserDataHolderBase;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Construction of mark highlighters when printing a listing, and hashing them as
+ * {@link Tui#updateHighlighters} does to match them against the editor highlighters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HighlighterBenchmark {
+  // the whole listing is printed below the window threshold
+  private static final int SIZE = 5000;
+
+  @Param({"0", "0.01", "0.1", "1"})
+  public double markDensity;
+
+  private FakeFile myDir;
+  private DirListing myListing;
+  private Tui myPrinted;
+
+  @Setup
+  public void setUp() {
+    myDir = FakeFile.createDir(SIZE, 42);
+    myListing = Dir.createListing(myDir, myDir.getChildren(), Dir.SortOrder.NAME, DirAttributes.EMPTY);
+    Random random = new Random(42);
+    int[] marked = IntStream.range(2, myListing.size()).filter(i -> random.nextDouble() < markDensity).toArray();
+    myListing.setMarked(marked, true);
+    myPrinted = print();
+  }
+
+  @Benchmark
+  public int printMarked() {
+    return print().highlighters.size();
+  }
+
+  @Benchmark
+  public int hashHighlighters() {
+    return new HashSet<>(myPrinted.highlighters).size();
+  }
+
+  private Tui print() {
+    Tui tui = new Tui(new UserDataHolderBase());
+    Dir.printEntries(tui, myDir, myListing, DirAttributes.EMPTY, 0, -1);
+    return tui;
+  }
+}
@@ -0,0 +1,50 @@
+package tui;
+
+import com.intellij.openapi.util.UserDataHolderBase;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing, sorting and printing of a directory as done by {@code Dir.printDir}, without VFS and snapshots.
+ * Only a window of entries is printed for big directories, so printing time should not grow with the size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int size;
+
+  private FakeFile myDir;
+  private DirListing myListing;
+
+  @Setup
+  public void setUp() {
+    myDir = FakeFile.createDir(size, 42);
+    myListing = Dir.createListing(myDir, myDir.getChildren(), Dir.SortOrder.NAME, DirAttributes.EMPTY);
+  }
+
+  @Benchmark
+  public DirListing createListing() {
+    return Dir.createListing(myDir, myDir.getChildren(), Dir.SortOrder.NAME, DirAttributes.EMPTY);
+  }
+
+  @Benchmark
+  public int printEntries() {
+    Tui tui = new Tui(new UserDataHolderBase());
+    Dir.printEntries(tui, myDir, myListing, DirAttributes.EMPTY, size / 2, size / 2);
+    return tui.text.length();
+  }
+
+  @Benchmark
+  public int printDir() {
+    DirListing listing = Dir.createListing(myDir, myDir.getChildren(), Dir.SortOrder.NAME, DirAttributes.EMPTY);
+    Tui tui = new Tui(new UserDataHolderBase());
+    Dir.printEntries(tui, myDir, listing, DirAttributes.EMPTY, 0, 2);
+    return tui.text.length();
+  }
+}
@@ -0,0 +1,95 @@
+package tui;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.actionSystem.TypedActionHandler;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.ObjectUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Buffer with latency percentiles of Tui render phases collected by {@link TuiStats}
+ */
+public class Diagnostics implements TypedActionHandler {
+  private static final Map<String, TypedActionHandler> DEFAULT_KEY_MAP = new HashMap<>() {{
+    put("j", Dir::down);
+    put("k", Dir::up);
+    put("g", Diagnostics::refresh);
+    put("c", Diagnostics::clear);
+  }};
+
+  public static void open(@NotNull Project project) {
+    TuiFile file = TuiFS.getInstance().createFile(project, "", Dir.DirFileType.INSTANCE);
+    file.setWritable(false);
+    file.setPresentableName("tui diagnostics");
+    TuiService.getInstance().setTui(file, true);
+    Tui.setTypingHandler(file, new Diagnostics());
+    Tui.open(file, project, Diagnostics::print);
+  }
+
+  @Override
+  public void execute(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    if (file == null) {
+      return;
+    }
+    Map<String, TypedActionHandler> keymap = Tui.TUI_KEYMAP.get(file, DEFAULT_KEY_MAP);
+    TypedActionHandler handler = keymap != null ? keymap.get(String.valueOf(charTyped)) : null;
+    if (handler != null) {
+      handler.execute(editor, charTyped, dataContext);
+    }
+  }
+
+  private static void print(@NotNull Tui tui) {
+    tui.text.append("Tui render phases (g - refresh, c - clear):\n\n");
+    TuiService.getInstance().getStats().print(tui.text);
+    tui.text.append("\nTui buffers:\n\n");
+    tui.text.append(String.format("%-16s %8s %12s %12s\n", "", "count", "text KB", "entries"));
+    printBuffers(tui.text, "open", TuiFS.getInstance().getOpenFiles());
+    printBuffers(tui.text, "closed", TuiFS.getInstance().getClosedFiles());
+  }
+
+  /**
+   * Prints the number of buffers, the size of their text and of their directory listings
+   */
+  private static void printBuffers(@NotNull StringBuilder text, @NotNull String title, @NotNull List<TuiFile> files) {
+    long chars = 0;
+    long entries = 0;
+    for (TuiFile file : files) {
+      Document doc = FileDocumentManager.getInstance().getCachedDocument(file);
+      chars += doc != null ? doc.getTextLength() : 0;
+      entries += Dir.getListingSize(file);
+    }
+    text.append(String.format("%-16s %8d %12d %12d\n", title, files.size(), 2 * chars / 1024, entries));
+  }
+
+  public static void refresh(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    if (file != null) {
+      Tui.update(file, editor, Diagnostics::print);
+    }
+  }
+
+  public static void clear(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiService.getInstance().getStats().reset();
+    refresh(editor, charTyped, dataContext);
+  }
+
+  public static class OpenAction extends AnAction {
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+      Project project = e.getProject();
+      if (project != null) {
+        open(project);
+      }
+    }
+  }
+}
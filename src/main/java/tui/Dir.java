@@ -2,64 +2,120 @@ package tui;
 
 import com.github.markusbernhardt.proxy.util.PlatformUtil;
 import com.intellij.CommonBundle;
+import com.intellij.codeInsight.hint.HintManager;
 import com.intellij.ide.DataManager;
 import com.intellij.ide.FileSelectInContext;
 import com.intellij.ide.SelectInContext;
 import com.intellij.lang.injection.InjectedLanguageManager;
 import com.intellij.openapi.actionSystem.*;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.LogicalPosition;
 import com.intellij.openapi.editor.ScrollType;
 import com.intellij.openapi.editor.actionSystem.EditorActionHandler;
 import com.intellij.openapi.editor.actionSystem.EditorActionManager;
 import com.intellij.openapi.editor.actionSystem.TypedActionHandler;
+import com.intellij.openapi.editor.event.CaretEvent;
+import com.intellij.openapi.editor.event.CaretListener;
 import com.intellij.openapi.editor.impl.EditorMarkupModelImpl;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileChooser.FileChooserDescriptor;
 import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileEditor.OpenFileDescriptor;
 import com.intellij.openapi.fileEditor.TextEditor;
 import com.intellij.openapi.fileEditor.impl.text.TextEditorCustomizer;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.ui.DialogPanel;
 import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.ui.popup.JBPopup;
+import com.intellij.openapi.ui.popup.JBPopupFactory;
+import com.intellij.openapi.ui.popup.JBPopupListener;
+import com.intellij.openapi.ui.popup.LightweightWindowEvent;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.NlsContexts;
 import com.intellij.openapi.util.NlsSafe;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.UserDataHolder;
+import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.pom.Navigatable;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
+import com.intellij.ui.DocumentAdapter;
 import com.intellij.ui.JBColor;
 import com.intellij.ui.TextFieldWithHistoryWithBrowseButton;
+import com.intellij.ui.components.JBTextField;
+import com.intellij.util.Alarm;
+import com.intellij.util.DocumentUtil;
 import com.intellij.util.ObjectUtils;
+import com.intellij.util.PathUtil;
 import com.intellij.util.PlatformIcons;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.ui.FormBuilder;
 import com.intellij.util.ui.JBUI;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.VisibleForTesting;
+import org.jetbrains.concurrency.CancellablePromise;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
 import java.awt.*;
 import java.awt.datatransfer.StringSelection;
-import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 public class Dir implements TypedActionHandler {
+  private static final Logger LOG = Logger.getInstance(Dir.class);
   private static final Key<VirtualFile> DIR = Key.create("tui.dir.currentDir");
-  private static final Key<List<VirtualFile>> FILES = Key.create("tui.dir.files");
-  private static final Key<Set<VirtualFile>> MARKED_FILES = Key.create("tui.dir.maked.files");
+  private static final Key<VirtualFile> REQUESTED_DIR = Key.create("tui.dir.requestedDir");
+  private static final Key<DirListing> FILES = Key.create("tui.dir.files");
+  private static final Key<Integer> WINDOW_START = Key.create("tui.dir.windowStart");
+  private static final Key<Boolean> DETAILED = Key.create("tui.dir.detailed");
+  private static final Key<SortOrder> SORT = Key.create("tui.dir.sort");
+  private static final Key<DirAttributes> ATTRIBUTES = Key.create("tui.dir.attributes");
+  private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+  private static final int WINDOW_THRESHOLD = 5000;
+  private static final int WINDOW_SIZE = 2000;
+  private static final int WINDOW_MARGIN = 200;
+  private static final int PREFETCH_DELAY_MS = 300;
+  private static final Key<CancellablePromise<?>> PREFETCH = Key.create("tui.dir.prefetch");
+  private static final Key<Integer> COUNT = Key.create("tui.dir.count");
+  private static final Key<String> FILTER = Key.create("tui.dir.filter");
+  private static final TextAttributes MARKED_ATTRIBUTES = new TextAttributes(JBColor.RED, null, null, null, Font.PLAIN);
   private static final Map<String, TypedActionHandler> DEFAULT_KEY_MAP = new HashMap<>() {{
     put("\n", Dir::openFileUnderCaret);
     put("j", Dir::down);
@@ -68,15 +124,33 @@ public class Dir implements TypedActionHandler {
     put("p", Dir::copyPathUnderCaret);
     put("u", Dir::gotoParentDir);
     put("D", Dir::deleteFile);
+    put("C", Dir::copyFiles);
+    put("R", Dir::moveFiles);
     put("m", Dir::toggleMark);
+    put("%", Dir::markByPattern);
+    put("U", Dir::unmarkByPattern);
+    put("l", Dir::toggleDetailed);
+    put("s", Dir::toggleSort);
+    put("z", Dir::diskUsageUnderCaret);
+    put("Z", Dir::diskUsageOfAllDirs);
+    put("f", Dir::findFiles);
+    put("w", Dir::startEditing);
+    put("i", Dir::jumpToName);
+    put("/", Dir::filterListing);
+  }};
+  private static final Map<String, TypedActionHandler> EDITING_KEY_MAP = new HashMap<>() {{
+    put("\n", Dir::applyEditing);
+    put("\u001b", Dir::cancelEditing);
   }};
 
   public static void openAsText(@NotNull Project project, @NotNull VirtualFile dir, @Nullable VirtualFile focus) {
     TuiFile file = TuiFS.getInstance().createFile(project, "", DirFileType.INSTANCE);
     file.setWritable(false);
+    file.setPresentableName(dir.getPath());
+    setRequestedDir(file, dir);
     TuiService.getInstance().setTui(file, true);
     Tui.setTypingHandler(file, new Dir());
-    Tui.open(file, project, tui -> printDir(tui, dir, focus));
+    Tui.open(file, project, tui -> printDir(tui, project, dir, focus));
   }
 
   @Override
@@ -85,28 +159,49 @@ public class Dir implements TypedActionHandler {
     if (file == null) {
       return;
     }
-    Map<String, TypedActionHandler> keymap = Tui.TUI_KEYMAP.get(file, DEFAULT_KEY_MAP);
+    Map<String, TypedActionHandler> keymap = Tui.isEditing(file) ? EDITING_KEY_MAP : Tui.TUI_KEYMAP.get(file, DEFAULT_KEY_MAP);
     String charStr = String.valueOf(charTyped);
     TypedActionHandler handler = keymap != null ? keymap.get(charStr) : null;
-    if (handler != null) {
-      handler.execute(editor, charTyped, dataContext);
+    Integer count = file.getUserData(COUNT);
+    if (handler == null && Character.isDigit(charTyped) && (charTyped != '0' || count != null)) {
+      // count prefix, e.g. 200j
+      file.putUserData(COUNT, Math.min((count != null ? count : 0) * 10 + (charTyped - '0'), 1_000_000));
+      return;
+    }
+    try {
+      if (handler != null) {
+        handler.execute(editor, charTyped, dataContext);
+      }
+    } finally {
+      file.putUserData(COUNT, null);
     }
   }
 
+  /**
+   * Returns the count typed before the command, 1 if there is none
+   */
+  private static int getCount(@NotNull Editor editor) {
+    VirtualFile file = editor.getVirtualFile();
+    Integer count = file != null ? file.getUserData(COUNT) : null;
+    return count != null ? count : 1;
+  }
+
   private static @Nullable VirtualFile getFileUnderCaret(@NotNull Editor editor) {
     VirtualFile file = editor.getVirtualFile();
     if (file == null) {
       return null;
     }
-    int fileIdx = editor.getDocument().getLineNumber(editor.getCaretModel().getCurrentCaret().getOffset()) - 1;
-    List<VirtualFile> files = Tui.getTuiData(file).getUserData(FILES);
-    if (files == null) {
-      files = Collections.emptyList();
-    }
-    if (0 <= fileIdx && fileIdx < files.size()) {
-      return files.get(fileIdx);
-    }
-    return null;
+    int idx = getEntryUnderCaret(editor);
+    DirListing files = Tui.getTuiData(file).getUserData(FILES);
+    return idx != -1 && files != null ? files.get(idx) : null;
+  }
+
+  /**
+   * Returns index of the listing entry under caret or -1
+   */
+  private static int getEntryUnderCaret(@NotNull Editor editor) {
+    int line = editor.getDocument().getLineNumber(editor.getCaretModel().getCurrentCaret().getOffset());
+    return line >= 1 ? line - 1 + WINDOW_START.get(Tui.getTuiData(editor.getVirtualFile()), 0) : -1;
   }
 
   private static @Nullable VirtualFile getDir(@Nullable VirtualFile file) {
@@ -114,12 +209,81 @@ public class Dir implements TypedActionHandler {
     return data.getUserData(DIR);
   }
 
+  /**
+   * Returns the directory of the last requested navigation, its listing might not be shown yet
+   */
+  private static @Nullable VirtualFile getRequestedDir(@NotNull TuiFile file) {
+    VirtualFile requested = file.getUserData(REQUESTED_DIR);
+    return requested != null ? requested : getDir(file);
+  }
+
+  /**
+   * Records the directory the buffer is navigating to and makes the buffer a user of the directory's shared model
+   */
+  private static void setRequestedDir(@NotNull TuiFile file, @NotNull VirtualFile dir) {
+    file.putUserData(REQUESTED_DIR, dir);
+    DirModels.getInstance(file.getProject()).setDir(file, dir.getPath());
+  }
+
+  /**
+   * Releases the directory model used by a closed Dir buffer
+   */
+  static void release(@NotNull TuiFile file) {
+    if (!file.getProject().isDisposed()) {
+      DirModels.getInstance(file.getProject()).setDir(file, null);
+    }
+  }
+
+  /**
+   * Renders a Dir buffer reopened after its render data was released on close
+   */
+  static void restore(@NotNull TuiFile file, @Nullable Editor editor) {
+    VirtualFile dir = getBufferDir(file);
+    if (dir != null && editor != null) {
+      navigate(file, editor, dir, null);
+    }
+  }
+
+  /**
+   * Returns the number of entries in the listing of the buffer, 0 if it is not a Dir buffer or its data is released
+   */
+  static int getListingSize(@NotNull VirtualFile file) {
+    DirListing listing = Tui.getTuiData(file).getUserData(FILES);
+    return listing != null ? listing.unfiltered().size() : 0;
+  }
+
+  /**
+   * Returns the directory shown or about to be shown in the Dir buffer
+   */
+  static @Nullable VirtualFile getBufferDir(@NotNull VirtualFile file) {
+    if (file instanceof TuiFile && Tui.getTypingHandler(file) instanceof Dir) {
+      return getRequestedDir((TuiFile) file);
+    }
+    return null;
+  }
+
+  private static void navigate(@NotNull TuiFile file, @NotNull Editor editor, @NotNull VirtualFile dir, @Nullable VirtualFile focus) {
+    setRequestedDir(file, dir);
+    TuiService.getInstance().updateWatchedDirs();
+    Project project = file.getProject();
+    DirSnapshots.Snapshot snapshot = getSnapshot(file, dir, focus);
+    if (snapshot != null) {
+      // cheap enough to apply right away, unlike listing the directory
+      Tui.update(file, editor, tui -> {
+        tui.name = dir.getPath();
+        printSnapshot(tui, dir, snapshot, focus);
+      });
+    } else {
+      Tui.updateAsync(file, editor, tui -> printDir(tui, project, dir, focus));
+    }
+  }
+
   private static void runAction(@NotNull Editor editor, @NotNull DataContext dataContext, @NotNull String actionId) {
     EditorActionHandler up = EditorActionManager.getInstance().getActionHandler(actionId);
     up.execute(editor, editor.getCaretModel().getCurrentCaret(), dataContext);
   }
 
-  private static void printDir(@NotNull Tui tui, @NotNull VirtualFile dir, @Nullable VirtualFile focus) {
+  private static void printDir(@NotNull Tui tui, @NotNull Project project, @NotNull VirtualFile dir, @Nullable VirtualFile focus) {
     tui.name = dir.getPath();
 
     if (!dir.isValid()) {
@@ -127,11 +291,73 @@ public class Dir implements TypedActionHandler {
       return;
     }
 
-    VirtualFile[] children = dir.getChildren();
+    boolean sameDir = Objects.equals(tui.data.getUserData(DIR), dir);
+    SortOrder sort = getOption(tui, SORT, SortOrder.NAME);
+    boolean detailed = getOption(tui, DETAILED, false);
+    DirSnapshots snapshots = DirSnapshots.getInstance(project);
+    String snapshotOptions = getSnapshotOptions(detailed, sort);
+    // a snapshot has no marks, so it is used only when coming to the directory, not when refreshing it
+    if (!sameDir && printSnapshot(tui, dir, snapshots.get(dir.getPath(), snapshotOptions), focus)) {
+      return;
+    }
+    long generation = TuiService.getInstance().getDirGeneration(dir.getPath());
+    TuiStats stats = TuiService.getInstance().getStats();
+
+    DirAttributes attributes = detailed || sort != SortOrder.NAME ? DirAttributes.get(dir) : DirAttributes.EMPTY;
+    // buffers showing the directory share its listing, each one keeps its marks in a copy
+    DirListing listing = DirModels.getInstance(project).getListing(dir.getPath(), sort.name(), generation, () -> {
+      long start = System.nanoTime();
+      VirtualFile[] children = dir.getChildren();
+      stats.record(TuiStats.Phase.LIST, start);
+      start = System.nanoTime();
+      DirListing result = createListing(dir, children, sort, attributes);
+      stats.record(TuiStats.Phase.SORT, start);
+      return result;
+    }).copy();
+    int firstItem = dir.getParent() != null ? 2 : 1;
+    int caretEntry = focus != null ? listing.indexOf(focus) : -1;
+    if (caretEntry == -1 && !sameDir && firstItem < listing.size()) {
+      caretEntry = firstItem;
+    }
+    int windowStart = caretEntry != -1 ? caretEntry - WINDOW_SIZE / 2 : sameDir ? WINDOW_START.get(tui.data, 0) : 0;
+
+    DirListing oldListing = tui.data.getUserData(FILES);
+    if (sameDir && oldListing != null) {
+      listing.copyMarks(oldListing);
+    }
+    String filter = sameDir ? tui.data.getUserData(FILTER) : null;
+    DirListing shownListing = listing;
+    if (filter != null) {
+      shownListing = listing.filter(filter);
+      tui.newData.putUserData(FILTER, filter);
+      caretEntry = caretEntry != -1 ? shownListing.fromBaseIndex(caretEntry) : -1;
+    }
+    long start = System.nanoTime();
+    printEntries(tui, dir, shownListing, attributes, windowStart, caretEntry);
+    stats.record(TuiStats.Phase.PRINT, start);
+    if (tui.caretOffset != null) {
+      tui.scrollToCaretType = ScrollType.CENTER;
+    }
+    if (filter == null && !listing.hasMarks()) {
+      int shownWindowStart = WINDOW_START.get(tui.newData, 0);
+      snapshots.put(dir.getPath(), snapshotOptions,
+                    new DirSnapshots.Snapshot(generation, tui.text.toString(), new ArrayList<>(tui.highlighters), listing.copyUnindexed(), shownWindowStart, attributes));
+    }
+  }
+
+  /**
+   * Returns the listing of the directory: the directory itself, its parent (if any), sorted subdirectories and files
+   */
+  @VisibleForTesting
+  static @NotNull DirListing createListing(@NotNull VirtualFile dir,
+                                           VirtualFile @Nullable [] children,
+                                           @NotNull SortOrder sort,
+                                           @NotNull DirAttributes attributes) {
     List<VirtualFile> dirs = new ArrayList<>();
     List<VirtualFile> files = new ArrayList<>();
     if (children != null) {
       for (VirtualFile child : children) {
+        ProgressManager.checkCanceled();
         if (child.isDirectory()) {
           dirs.add(child);
         } else {
@@ -140,93 +366,393 @@ public class Dir implements TypedActionHandler {
       }
     }
 
+    Comparator<VirtualFile> comparator = getComparator(sort, attributes);
+    dirs.sort(comparator);
+    files.sort(comparator);
+
+    VirtualFile parentDir = dir.getParent();
+    List<VirtualFile> shownFiles = new ArrayList<>(children != null ? children.length + 2 : 2);
+    shownFiles.add(dir);
+    if (parentDir != null) {
+      shownFiles.add(parentDir);
+    }
+    int firstItem = shownFiles.size();
+    shownFiles.addAll(dirs);
+    shownFiles.addAll(files);
+
+    DirListing listing = DirListing.create(shownFiles);
+    listing.setOrder(firstItem, firstItem + dirs.size(), sort == SortOrder.NAME);
+    return listing;
+  }
+
+  /**
+   * Prints a previously rendered listing, returns false if there is no snapshot or the focused entry is outside of its window
+   */
+  private static boolean printSnapshot(@NotNull Tui tui, @NotNull VirtualFile dir, @Nullable DirSnapshots.Snapshot snapshot, @Nullable VirtualFile focus) {
+    if (snapshot == null) {
+      return false;
+    }
+    DirListing listing = snapshot.listing.copy();
+    int caretEntry = getSnapshotCaretEntry(dir, snapshot, focus);
+    if (!isInWindow(snapshot, caretEntry)) {
+      return false;
+    }
+    tui.text.append(snapshot.text);
+    tui.highlighters.addAll(snapshot.highlighters);
+    if (caretEntry != -1) {
+      tui.caretOffset = StringUtil.lineColToOffset(snapshot.text, caretEntry - snapshot.windowStart + 1, 0);
+      tui.scrollToCaretType = ScrollType.CENTER;
+    }
+    putListingData(tui, dir, listing, snapshot.windowStart, getOption(tui, DETAILED, false), getOption(tui, SORT, SortOrder.NAME), snapshot.attributes);
+    return true;
+  }
+
+  private static int getSnapshotCaretEntry(@NotNull VirtualFile dir, @NotNull DirSnapshots.Snapshot snapshot, @Nullable VirtualFile focus) {
+    int firstItem = dir.getParent() != null ? 2 : 1;
+    int caretEntry = focus != null ? snapshot.listing.indexOf(focus) : -1;
+    return caretEntry == -1 && firstItem < snapshot.listing.size() ? firstItem : caretEntry;
+  }
+
+  /**
+   * Returns the snapshot to show when navigating to the directory, or null if there is none or
+   * the focused entry is outside of its window, so that the directory has to be listed
+   */
+  private static @Nullable DirSnapshots.Snapshot getSnapshot(@NotNull TuiFile file, @NotNull VirtualFile dir, @Nullable VirtualFile focus) {
+    UserDataHolder data = Tui.getTuiData(file);
+    if (dir.equals(data.getUserData(DIR))) {
+      return null;
+    }
+    String options = getSnapshotOptions(DETAILED.get(data, false), SORT.get(data, SortOrder.NAME));
+    DirSnapshots.Snapshot snapshot = DirSnapshots.getInstance(file.getProject()).get(dir.getPath(), options);
+    if (snapshot == null) {
+      return null;
+    }
+    return isInWindow(snapshot, getSnapshotCaretEntry(dir, snapshot, focus)) ? snapshot : null;
+  }
 
-    dirs.sort(Comparator.comparing(VirtualFile::getName, String.CASE_INSENSITIVE_ORDER));
-    files.sort(Comparator.comparing(VirtualFile::getName, String.CASE_INSENSITIVE_ORDER));
+  private static boolean isInWindow(@NotNull DirSnapshots.Snapshot snapshot, int caretEntry) {
+    return caretEntry == -1 ||
+           snapshot.windowStart <= caretEntry && caretEntry < getWindowEnd(snapshot.windowStart, snapshot.listing.size());
+  }
 
-    tui.text.append(dir.getPath()).append(":\n");
+  private static @NotNull String getSnapshotOptions(boolean detailed, @NotNull SortOrder sort) {
+    return (detailed ? "detailed," : "") + sort.name();
+  }
 
-    Set<VirtualFile> markedFiles = MARKED_FILES.get(tui.newData, Collections.emptySet());
+  /**
+   * Prints the listing entries. Big listings are printed partially: only a window
+   * of {@link #WINDOW_SIZE} entries starting around the windowStart is put into the document.
+   */
+  @VisibleForTesting
+  static void printEntries(@NotNull Tui tui,
+                           @NotNull VirtualFile dir,
+                           @NotNull DirListing listing,
+                           @NotNull DirAttributes attributes,
+                           int windowStart,
+                           int caretEntry) {
+    int size = listing.size();
+    windowStart = getWindowStart(windowStart, size);
+    int windowEnd = getWindowEnd(windowStart, size);
+    boolean detailed = getOption(tui, DETAILED, false);
+    SortOrder sort = getOption(tui, SORT, SortOrder.NAME);
+    String filter = listing.isFiltered() ? getOption(tui, FILTER, "") : null;
 
-    tui.text.append(".");
-    if (markedFiles.contains(dir)) {
-      Tui.Highlighter h = new Tui.Highlighter();
-      h.startOffset = tui.text.length() - 1;
-      h.endOffset = tui.text.length();
-      h.attributes = new TextAttributes(JBColor.RED, null, null, null, Font.PLAIN);
-      tui.highlighters.add(h);
+    tui.text.append(dir.getPath()).append(":");
+    if (sort != SortOrder.NAME) {
+      tui.text.append(" (by ").append(StringUtil.toLowerCase(sort.name())).append(")");
+    }
+    if (filter != null) {
+      tui.text.append(" (filter: ").append(filter).append(")");
+    }
+    if (windowEnd - windowStart < size) {
+      tui.text.append(" [").append(windowStart + 1).append("-").append(windowEnd).append(" of ").append(size).append("]");
     }
     tui.text.append("\n");
 
-    VirtualFile parentDir = dir.getParent();
-    if (parentDir != null) {
-      tui.text.append("..");
-      if (markedFiles.contains(parentDir)) {
-        Tui.Highlighter h = new Tui.Highlighter();
-        h.startOffset = tui.text.length() - 2;
-        h.endOffset = tui.text.length();
-        h.attributes = new TextAttributes(JBColor.RED, null, null, null, Font.PLAIN);
-        tui.highlighters.add(h);
+    boolean hasParent = dir.getParent() != null;
+    for (int i = windowStart; i < windowEnd; i++) {
+      ProgressManager.checkCanceled();
+      VirtualFile f = listing.get(i);
+      int lineStart = tui.text.length();
+      if (i == caretEntry) {
+        tui.caretOffset = lineStart;
+      }
+      String name = getEntryName(i, f, hasParent);
+      DirAttributes.Attributes a = detailed ? attributes.get(name) : null;
+      if (detailed) {
+        printAttributes(tui.text, a, attributes.getSizeWidth());
+      }
+      boolean isSpecialDir = i == 0 || i == 1 && hasParent;
+      boolean isDirectory = f != null && f.isDirectory();
+      if (!isSpecialDir && isDirectory) {
+        tui.text.append("[").append(name).append("]");
+      } else {
+        tui.text.append(name);
+      }
+      if (a != null && a.linkTarget != null) {
+        tui.text.append(" -> ").append(a.linkTarget);
+      }
+      if (isDirectory && (i == 0 || !isSpecialDir)) {
+        Long du = DiskUsage.getCachedSize(f.getPath());
+        if (du != null) {
+          tui.text.append("  ").append(StringUtil.formatFileSize(du));
+        }
+      }
+      if (listing.isMarked(i)) {
+        highlightMarked(tui, lineStart, tui.text.length());
       }
       tui.text.append("\n");
     }
 
-    Integer firstItemOffset = null;
-    Integer caretOffset = null;
-    for (VirtualFile child : dirs) {
-      if (firstItemOffset == null) {
-        firstItemOffset = tui.text.length();
-      }
+    putListingData(tui, dir, listing, windowStart, detailed, sort, attributes);
+  }
+
+  private static void putListingData(@NotNull Tui tui,
+                                     @NotNull VirtualFile dir,
+                                     @NotNull DirListing listing,
+                                     int windowStart,
+                                     boolean detailed,
+                                     @NotNull SortOrder sort,
+                                     @NotNull DirAttributes attributes) {
+    tui.newData.putUserData(DIR, dir);
+    tui.newData.putUserData(FILES, listing);
+    tui.newData.putUserData(WINDOW_START, windowStart);
+    tui.newData.putUserData(DETAILED, detailed);
+    tui.newData.putUserData(SORT, sort);
+    if (!attributes.isEmpty()) {
+      tui.newData.putUserData(ATTRIBUTES, attributes);
+    }
+    if (listing.isFiltered()) {
+      tui.newData.putUserData(FILTER, getOption(tui, FILTER, ""));
+    }
+  }
+
+  private static @NotNull String getEntryName(int idx, @Nullable VirtualFile f, boolean hasParent) {
+    return idx == 0 ? "." : idx == 1 && hasParent ? ".." : f != null ? f.getName() : "";
+  }
+
+  /**
+   * Prints all entries as plain names, one per line, for renaming them in editing mode.
+   * Listings are not windowed in editing mode, so only listings up to {@link #WINDOW_THRESHOLD} entries can be edited.
+   */
+  private static void printEditableEntries(@NotNull Tui tui, @NotNull VirtualFile dir, @NotNull DirListing listing, int caretEntry) {
+    tui.text.append(dir.getPath()).append(": (editing, Enter to apply, Escape to cancel)\n");
+    boolean hasParent = dir.getParent() != null;
+    for (int i = 0; i < listing.size(); i++) {
+      ProgressManager.checkCanceled();
       int lineStart = tui.text.length();
-      if (Objects.equals(child, focus)) {
-        caretOffset = lineStart;
+      if (i == caretEntry) {
+        tui.caretOffset = lineStart;
+        tui.scrollToCaretType = ScrollType.CENTER;
       }
-      tui.text.append("[").append(child.getName()).append("]");
-      if (markedFiles.contains(child)) {
-        Tui.Highlighter h = new Tui.Highlighter();
-        h.startOffset = lineStart;
-        h.endOffset = tui.text.length();
-        h.attributes = new TextAttributes(JBColor.RED, null, null, null, Font.PLAIN);
-        tui.highlighters.add(h);
+      tui.text.append(getEntryName(i, listing.get(i), hasParent));
+      if (listing.isMarked(i)) {
+        highlightMarked(tui, lineStart, tui.text.length());
       }
       tui.text.append("\n");
     }
-    for (VirtualFile child : files) {
-      int lineStart = tui.text.length();
-      if (firstItemOffset == null) {
-        firstItemOffset = lineStart;
+    putListingData(tui, dir, listing, 0, getOption(tui, DETAILED, false), getOption(tui, SORT, SortOrder.NAME), DirAttributes.EMPTY);
+  }
+
+  /**
+   * Collects new names of the entries edited in the document, returns an error if the edits cannot be applied
+   */
+  private static @Nullable String collectRenames(@NotNull Document doc,
+                                                 @NotNull VirtualFile dir,
+                                                 @NotNull DirListing listing,
+                                                 @NotNull Map<VirtualFile, String> newNames) {
+    int size = listing.size();
+    for (int line = size + 1; line < doc.getLineCount(); line++) {
+      if (!StringUtil.isEmptyOrSpaces(doc.getText(DocumentUtil.getLineTextRange(doc, line)))) {
+        return "Lines must not be added or removed";
+      }
+    }
+    if (doc.getLineCount() < size + 1) {
+      return "Lines must not be added or removed";
+    }
+    boolean hasParent = dir.getParent() != null;
+    int firstItem = hasParent ? 2 : 1;
+    Map<String, Integer> lineByName = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      int line = i + 1;
+      String name = doc.getText(DocumentUtil.getLineTextRange(doc, line));
+      VirtualFile f = listing.get(i);
+      String oldName = getEntryName(i, f, hasParent);
+      boolean renamed = !name.equals(oldName);
+      if (i < firstItem || f == null) {
+        if (renamed) {
+          return "Line " + (line + 1) + ": '" + oldName + "' cannot be renamed";
+        }
+        continue;
       }
-      if (Objects.equals(child, focus)) {
-        caretOffset = lineStart;
+      if (renamed && !f.isValid()) {
+        return "Line " + (line + 1) + ": '" + oldName + "' no longer exists";
       }
-      tui.text.append(child.getName());
-      if (markedFiles.contains(child)) {
-        Tui.Highlighter h = new Tui.Highlighter();
-        h.startOffset = lineStart;
-        h.endOffset = tui.text.length();
-        h.attributes = new TextAttributes(JBColor.RED, null, null, null, Font.PLAIN);
-        tui.highlighters.add(h);
+      if (renamed && (name.isEmpty() || name.equals(".") || name.equals("..") || StringUtil.containsAnyChar(name, "/\\"))) {
+        return "Line " + (line + 1) + ": invalid name '" + name + "'";
+      }
+      Integer otherLine = lineByName.put(dir.isCaseSensitive() ? name : StringUtil.toLowerCase(name), line);
+      if (otherLine != null) {
+        return "Lines " + (otherLine + 1) + " and " + (line + 1) + ": duplicate name '" + name + "'";
+      }
+      if (renamed) {
+        // the file may be hidden by the filter or created after the listing
+        VirtualFile existing = dir.findChild(name);
+        if (existing != null && !existing.equals(f) && listing.indexOf(existing) == -1) {
+          return "Line " + (line + 1) + ": '" + name + "' already exists";
+        }
+        newNames.put(f, name);
       }
-      tui.text.append("\n");
     }
+    return null;
+  }
 
-    if (caretOffset == null && !Objects.equals(tui.data.getUserData(DIR), dir)) {
-      caretOffset = firstItemOffset;
+  private static void printAttributes(@NotNull StringBuilder text, @Nullable DirAttributes.Attributes a, int sizeWidth) {
+    if (a == null) {
+      text.append(StringUtil.repeat(" ", 10 + 1 + sizeWidth + 1 + 16)).append(" ");
+      return;
     }
-    if (caretOffset != null) {
-      tui.caretOffset = caretOffset;
-      tui.scrollToCaretType = ScrollType.CENTER;
+    text.append(a.permissions).append(" ");
+    String size = String.valueOf(a.size);
+    text.append(StringUtil.repeat(" ", sizeWidth - size.length())).append(size).append(" ");
+    TIME_FORMAT.formatTo(Instant.ofEpochMilli(a.modified), text);
+    text.append(" ");
+  }
+
+  private static @NotNull Comparator<VirtualFile> getComparator(@NotNull SortOrder sort, @NotNull DirAttributes attributes) {
+    Comparator<VirtualFile> byName = Comparator.comparing(VirtualFile::getName, String.CASE_INSENSITIVE_ORDER);
+    switch (sort) {
+      case SIZE:
+        return Comparator.<VirtualFile>comparingLong(f -> {
+          DirAttributes.Attributes a = attributes.get(f.getName());
+          return a != null ? a.size : 0;
+        }).reversed().thenComparing(byName);
+      case TIME:
+        return Comparator.<VirtualFile>comparingLong(f -> {
+          DirAttributes.Attributes a = attributes.get(f.getName());
+          return a != null ? a.modified : 0;
+        }).reversed().thenComparing(byName);
+      default:
+        return byName;
     }
+  }
 
-    List<VirtualFile> shownFiles = new ArrayList<>(children != null ? children.length : 0);
-    shownFiles.add(dir);
-    if (parentDir != null) {
-      shownFiles.add(parentDir);
+  /**
+   * Returns an option set for this render or the option of the current render
+   */
+  @NotNull
+  private static <T> T getOption(@NotNull Tui tui, @NotNull Key<T> key, @NotNull T defaultValue) {
+    T value = tui.newData.getUserData(key);
+    if (value == null) {
+      value = tui.data.getUserData(key);
     }
-    shownFiles.addAll(dirs);
-    shownFiles.addAll(files);
-    tui.newData.putUserData(DIR, dir);
-    tui.newData.putUserData(FILES, shownFiles);
+    return value != null ? value : defaultValue;
+  }
+
+  private static int getWindowStart(int windowStart, int size) {
+    if (size <= WINDOW_THRESHOLD) {
+      return 0;
+    }
+    return Math.max(0, Math.min(windowStart, size - WINDOW_SIZE));
+  }
+
+  private static int getWindowEnd(int windowStart, int size) {
+    if (size <= WINDOW_THRESHOLD) {
+      return size;
+    }
+    return Math.min(size, windowStart + WINDOW_SIZE);
+  }
+
+  /**
+   * Moves the window of a big listing when the anchor line comes close to the window boundary.
+   * The anchor entry keeps its position on the screen.
+   */
+  private static boolean updateWindow(@NotNull TuiFile file, @NotNull Editor editor, int anchorLine) {
+    UserDataHolder data = Tui.getTuiData(file);
+    VirtualFile dir = data.getUserData(DIR);
+    DirListing listing = data.getUserData(FILES);
+    if (dir == null || listing == null || listing.size() <= WINDOW_THRESHOLD || !dir.equals(getRequestedDir(file)) || Tui.isEditing(file)) {
+      return false;
+    }
+    int windowStart = WINDOW_START.get(data, 0);
+    int lastLine = editor.getDocument().getLineCount() - 2;
+    boolean nearTop = anchorLine <= WINDOW_MARGIN && windowStart > 0;
+    boolean nearBottom = anchorLine >= lastLine - WINDOW_MARGIN && windowStart + lastLine < listing.size();
+    if (!nearTop && !nearBottom) {
+      return false;
+    }
+
+    int anchorEntry = windowStart + Math.max(anchorLine, 1) - 1;
+    int anchorY = editor.logicalPositionToXY(new LogicalPosition(anchorLine, 0)).y - editor.getScrollingModel().getVerticalScrollOffset();
+    int caretLine = editor.getCaretModel().getLogicalPosition().line;
+    int newWindowStart = getWindowStart(anchorEntry - WINDOW_SIZE / 2, listing.size());
+    int caretEntry = caretLine >= 1 ? windowStart + caretLine - 1 : anchorEntry;
+    if (caretEntry < newWindowStart || newWindowStart + WINDOW_SIZE <= caretEntry) {
+      caretEntry = anchorEntry;
+    }
+    int newCaretEntry = caretEntry;
+    DirAttributes attributes = ATTRIBUTES.get(data, DirAttributes.EMPTY);
+    Tui.update(file, editor, tui -> {
+      tui.name = dir.getPath();
+      printEntries(tui, dir, listing, attributes, newWindowStart, newCaretEntry);
+    });
+    int newAnchorLine = anchorEntry - newWindowStart + 1;
+    int newAnchorY = editor.logicalPositionToXY(new LogicalPosition(newAnchorLine, 0)).y;
+    editor.getScrollingModel().scrollVertically(newAnchorY - anchorY);
+    return true;
+  }
+
+  private static void updateWindowForVisibleArea(@NotNull TuiFile file, @NotNull Editor editor) {
+    Rectangle area = editor.getScrollingModel().getVisibleArea();
+    int topLine = editor.xyToLogicalPosition(new Point(0, area.y)).line;
+    if (!updateWindow(file, editor, topLine)) {
+      int bottomLine = editor.xyToLogicalPosition(new Point(0, area.y + area.height)).line;
+      updateWindow(file, editor, bottomLine);
+    }
+  }
+
+  /**
+   * Lists and renders the directory under caret in background, so that entering it is a snapshot hit.
+   * The prefetch is cancelled when the caret moves.
+   */
+  private static void prefetchDirUnderCaret(@NotNull TuiFile file, @NotNull Editor editor) {
+    if (editor.isDisposed() || Tui.isEditing(file)) {
+      return;
+    }
+    VirtualFile dir = getDir(file);
+    VirtualFile f = getFileUnderCaret(editor);
+    if (dir == null || f == null || !f.isDirectory() || f.equals(dir)) {
+      return;
+    }
+    UserDataHolder current = Tui.getTuiData(file);
+    UserDataHolderBase data = new UserDataHolderBase();
+    data.putUserData(DETAILED, DETAILED.get(current, false));
+    data.putUserData(SORT, SORT.get(current, SortOrder.NAME));
+    Project project = file.getProject();
+    CancellablePromise<?> prefetch = ReadAction.nonBlocking(() -> printDir(new Tui(data), project, f, null))
+      .expireWith(project)
+      .submit(AppExecutorUtil.getAppExecutorService());
+    editor.putUserData(PREFETCH, prefetch);
+  }
+
+  private static void cancelPrefetch(@NotNull Editor editor) {
+    CancellablePromise<?> prefetch = editor.getUserData(PREFETCH);
+    if (prefetch != null) {
+      prefetch.cancel();
+      editor.putUserData(PREFETCH, null);
+    }
+  }
+
+  private static void highlightMarked(@NotNull Tui tui, int startOffset, int endOffset) {
+    tui.highlighters.add(createMarkHighlighter(startOffset, endOffset));
+  }
+
+  private static @NotNull Tui.Highlighter createMarkHighlighter(int startOffset, int endOffset) {
+    Tui.Highlighter h = new Tui.Highlighter();
+    h.startOffset = startOffset;
+    h.endOffset = endOffset;
+    h.attributes = MARKED_ATTRIBUTES;
+    return h;
   }
 
 
@@ -243,13 +769,7 @@ public class Dir implements TypedActionHandler {
       }
       OpenDirDialog dialog = new OpenDirDialog(project, dir);
       if (dialog.showAndGet()) {
-        String specifiedPath = dialog.myDir.getText();
-        VirtualFile selectedDir;
-        if (specifiedPath.equals("~") || specifiedPath.equals("~/")) {
-          selectedDir = VirtualFileManager.getInstance().findFileByNioPath(Path.of(PlatformUtil.getUserHomeDir()));
-        } else {
-          selectedDir = VirtualFileManager.getInstance().findFileByNioPath(Path.of(specifiedPath));
-        }
+        VirtualFile selectedDir = dialog.getSelectedDir();
         if (selectedDir != null) {
           Dir.openAsText(project, selectedDir, e.getData(CommonDataKeys.VIRTUAL_FILE));
         } else {
@@ -279,7 +799,14 @@ public class Dir implements TypedActionHandler {
     private final TextFieldWithHistoryWithBrowseButton myDir;
 
     public OpenDirDialog(@Nullable Project project, @Nullable VirtualFile dir) {
+      this(project, dir, null);
+    }
+
+    public OpenDirDialog(@Nullable Project project, @Nullable VirtualFile dir, @Nullable String title) {
       super(project, false);
+      if (title != null) {
+        setTitle(title);
+      }
       myDir = new TextFieldWithHistoryWithBrowseButton();
       FileChooserDescriptor config = new FileChooserDescriptor(false, true, false, false, false, false);
       FileChooserFactory.getInstance().installFileCompletion(myDir.getChildComponent().getTextEditor(), config, true, getDisposable());
@@ -294,11 +821,44 @@ public class Dir implements TypedActionHandler {
     @Override
     protected @Nullable JComponent createCenterPanel() {
       DialogPanel result = new DialogPanel(new BorderLayout());
-      result.setPreferredSize(JBUI.size(500, 30));
-      result.add(FormBuilder.createFormBuilder().addComponent(myDir).getPanel(), BorderLayout.NORTH);
+      JPanel form = createForm().getPanel();
+      result.setPreferredSize(new Dimension(JBUI.scale(500), Math.max(JBUI.scale(30), form.getPreferredSize().height)));
+      result.add(form, BorderLayout.NORTH);
       result.setPreferredFocusedComponent(myDir);
       return result;
     }
+
+    protected @NotNull FormBuilder createForm() {
+      return FormBuilder.createFormBuilder().addComponent(myDir);
+    }
+
+    @Nullable VirtualFile getSelectedDir() {
+      String specifiedPath = myDir.getText();
+      if (specifiedPath.equals("~") || specifiedPath.equals("~/")) {
+        return VirtualFileManager.getInstance().findFileByNioPath(Path.of(PlatformUtil.getUserHomeDir()));
+      }
+      return VirtualFileManager.getInstance().findFileByNioPath(Path.of(specifiedPath));
+    }
+  }
+
+  /**
+   * Asks for the target directory of a copy or move and what to do with existing files
+   */
+  private static class TransferDialog extends OpenDirDialog {
+    private final ComboBox<FileOps.ConflictPolicy> myConflictPolicy = new ComboBox<>(FileOps.ConflictPolicy.values());
+
+    TransferDialog(@NotNull Project project, @NotNull VirtualFile dir, @NotNull String title) {
+      super(project, dir, title);
+    }
+
+    @Override
+    protected @NotNull FormBuilder createForm() {
+      return super.createForm().addLabeledComponent("If file exists:", myConflictPolicy);
+    }
+
+    @NotNull FileOps.ConflictPolicy getConflictPolicy() {
+      return (FileOps.ConflictPolicy) Objects.requireNonNull(myConflictPolicy.getSelectedItem());
+    }
   }
 
 
@@ -347,8 +907,28 @@ public class Dir implements TypedActionHandler {
           psiFile.putUserData(InjectedLanguageManager.FRANKENSTEIN_INJECTION, true);
         }
 
-        VirtualFile dir = getDir(file);
-        if (dir != null) {
+        if (Tui.getTypingHandler(file) instanceof Dir) {
+          TuiFile tuiFile = (TuiFile) file;
+          Alarm prefetchAlarm = new Alarm(textEditor);
+          editor.getCaretModel().addCaretListener(new CaretListener() {
+            @Override
+            public void caretPositionChanged(@NotNull CaretEvent event) {
+              cancelPrefetch(editor);
+              prefetchAlarm.cancelAllRequests();
+              prefetchAlarm.addRequest(() -> prefetchDirUnderCaret(tuiFile, editor), PREFETCH_DELAY_MS);
+              ApplicationManager.getApplication().invokeLater(() -> {
+                if (!editor.isDisposed()) {
+                  updateWindow(tuiFile, editor, editor.getCaretModel().getLogicalPosition().line);
+                }
+              });
+            }
+          }, textEditor);
+          editor.getScrollingModel().addVisibleAreaListener(e -> ApplicationManager.getApplication().invokeLater(() -> {
+            if (!editor.isDisposed()) {
+              updateWindowForVisibleArea(tuiFile, editor);
+            }
+          }), textEditor);
+
           JComponent component = editor.getComponent();
           DataProvider originalDataProvider = DataManager.getDataProvider(component);
           if (originalDataProvider != null) {
@@ -359,7 +939,10 @@ public class Dir implements TypedActionHandler {
             public @Nullable Object getData(@NotNull @NonNls String dataId) {
               if (project != null && SelectInContext.DATA_KEY.is(dataId)) {
                 VirtualFile f = getFileUnderCaret(editor);
-                return new FileSelectInContext(project, f != null ? f : dir);
+                VirtualFile dir = getDir(file);
+                if (f != null || dir != null) {
+                  return new FileSelectInContext(project, f != null ? f : dir);
+                }
               }
               if (CommonDataKeys.NAVIGATABLE_ARRAY.is(dataId)) {
                 VirtualFile dirItem = getFileUnderCaret(editor);
@@ -376,11 +959,143 @@ public class Dir implements TypedActionHandler {
   }
 
   public static void up(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
-    runAction(editor, dataContext, IdeActions.ACTION_EDITOR_MOVE_CARET_UP);
+    int count = getCount(editor);
+    if (count == 1 || !moveByEntries(editor, -count)) {
+      runAction(editor, dataContext, IdeActions.ACTION_EDITOR_MOVE_CARET_UP);
+    }
   }
 
   public static void down(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
-    runAction(editor, dataContext, IdeActions.ACTION_EDITOR_MOVE_CARET_DOWN);
+    int count = getCount(editor);
+    if (count == 1 || !moveByEntries(editor, count)) {
+      runAction(editor, dataContext, IdeActions.ACTION_EDITOR_MOVE_CARET_DOWN);
+    }
+  }
+
+  private static boolean moveByEntries(@NotNull Editor editor, int delta) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    int entry = getEntryUnderCaret(editor);
+    return file != null && moveToEntry(file, editor, Math.max(entry, 0) + delta);
+  }
+
+  /**
+   * Moves the caret to the listing entry, shifts the window of a big listing if the entry is outside of it
+   */
+  private static boolean moveToEntry(@NotNull TuiFile file, @NotNull Editor editor, int entry) {
+    UserDataHolder data = Tui.getTuiData(file);
+    VirtualFile dir = data.getUserData(DIR);
+    DirListing listing = data.getUserData(FILES);
+    if (dir == null || listing == null || listing.size() == 0 || !dir.equals(getRequestedDir(file))) {
+      return false;
+    }
+    int target = Math.max(0, Math.min(entry, listing.size() - 1));
+    int windowStart = WINDOW_START.get(data, 0);
+    if (target < windowStart || getWindowEnd(windowStart, listing.size()) <= target) {
+      DirAttributes attributes = ATTRIBUTES.get(data, DirAttributes.EMPTY);
+      Tui.update(file, editor, tui -> {
+        tui.name = dir.getPath();
+        printEntries(tui, dir, listing, attributes, target - WINDOW_SIZE / 2, target);
+      });
+    } else {
+      editor.getCaretModel().moveToOffset(editor.getDocument().getLineStartOffset(target - windowStart + 1));
+    }
+    editor.getScrollingModel().scrollToCaret(ScrollType.MAKE_VISIBLE);
+    return true;
+  }
+
+  /**
+   * Shows a prompt where typing a name prefix moves the caret to the first matching entry
+   */
+  public static void jumpToName(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    if (file == null || Tui.getTuiData(file).getUserData(FILES) == null) {
+      return;
+    }
+    showPrompt(editor, "Jump to", "", prefix -> {
+      DirListing listing = Tui.getTuiData(file).getUserData(FILES);
+      int entry = listing != null && !prefix.isEmpty() ? listing.findByPrefix(prefix) : -1;
+      if (entry != -1) {
+        moveToEntry(file, editor, entry);
+      }
+      return entry != -1 || prefix.isEmpty();
+    }, null);
+  }
+
+  /**
+   * Shows a prompt which narrows the listing to entries whose names contain the typed text.
+   * Enter keeps the filter, Escape removes it.
+   */
+  public static void filterListing(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    VirtualFile dir = file != null ? getDir(file) : null;
+    if (dir == null || Tui.getTuiData(file).getUserData(FILES) == null || !dir.equals(getRequestedDir(file))) {
+      return;
+    }
+    String filter = FILTER.get(Tui.getTuiData(file), "");
+    showPrompt(editor, "Filter", filter, query -> {
+      setFilter(file, editor, dir, query);
+      return true;
+    }, () -> setFilter(file, editor, dir, ""));
+  }
+
+  private static void setFilter(@NotNull TuiFile file, @NotNull Editor editor, @NotNull VirtualFile dir, @NotNull String query) {
+    VirtualFile focus = getFileUnderCaret(editor);
+    Project project = file.getProject();
+    Tui.updateAsync(file, editor, tui -> {
+      DirListing listing = tui.data.getUserData(FILES);
+      if (listing == null || !dir.equals(tui.data.getUserData(DIR))) {
+        printDir(tui, project, dir, focus);
+        return;
+      }
+      // the index of names is built by the first filtering of the listing, so that typing doesn't rescan the names
+      DirListing filtered = query.isEmpty() ? listing.unfiltered() : listing.filter(query);
+      int caretEntry = focus != null ? filtered.indexOf(focus) : -1;
+      int firstItem = dir.getParent() != null ? 2 : 1;
+      if (caretEntry == -1 && firstItem < filtered.size()) {
+        caretEntry = firstItem;
+      }
+      if (!query.isEmpty()) {
+        tui.newData.putUserData(FILTER, query);
+      }
+      tui.name = dir.getPath();
+      printEntries(tui, dir, filtered, ATTRIBUTES.get(tui.data, DirAttributes.EMPTY), caretEntry - WINDOW_SIZE / 2, caretEntry);
+      tui.scrollToCaretType = ScrollType.MAKE_VISIBLE;
+    });
+  }
+
+  /**
+   * Shows a one-line input popup over the editor. The callback is called on every change of the text and returns
+   * false if nothing matches the text. The cancel callback is called when the popup is closed with Escape.
+   */
+  private static void showPrompt(@NotNull Editor editor,
+                                 @NotNull String title,
+                                 @NotNull String text,
+                                 @NotNull Predicate<String> onChange,
+                                 @Nullable Runnable onCancel) {
+    JBTextField field = new JBTextField(text, 30);
+    JBPopup popup = JBPopupFactory.getInstance().createComponentPopupBuilder(field, field)
+      .setTitle(title)
+      .setRequestFocus(true)
+      .setCancelOnClickOutside(true)
+      .createPopup();
+    Color foreground = field.getForeground();
+    field.getDocument().addDocumentListener(new DocumentAdapter() {
+      @Override
+      protected void textChanged(@NotNull DocumentEvent e) {
+        boolean found = onChange.test(field.getText());
+        field.setForeground(found ? foreground : JBColor.RED);
+      }
+    });
+    field.addActionListener(e -> popup.closeOk(null));
+    popup.addListener(new JBPopupListener() {
+      @Override
+      public void onClosed(@NotNull LightweightWindowEvent event) {
+        if (!event.isOk() && onCancel != null) {
+          onCancel.run();
+        }
+      }
+    });
+    popup.showInBestPositionFor(editor);
   }
 
   public static void openFileUnderCaret(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
@@ -395,10 +1110,12 @@ public class Dir implements TypedActionHandler {
         return;
       }
       if (f.isDirectory()) {
+        // a buffer shown in several splits opens a buffer of its own to keep navigation, caret and marks per split,
+        // the buffers still share the directory model so this costs only a copy of the listing
         if (project != null && FileEditorManager.getInstance(project).getAllEditors(file).length > 1) {
           Dir.openAsText(project, f, null);
         } else {
-          Tui.update(file, editor, tui -> printDir(tui, f, null));
+          navigate(file, editor, f, null);
         }
       } else {
         if (project != null) {
@@ -422,14 +1139,15 @@ public class Dir implements TypedActionHandler {
       return;
     }
     Project project = editor.getProject();
-    VirtualFile dir = getDir(file);
+    VirtualFile dir = getRequestedDir(file);
     if (dir != null) {
       VirtualFile parent = dir.getParent();
       if (parent != null) {
+        // a buffer of its own per split as in openFileUnderCaret
         if (project != null && FileEditorManager.getInstance(project).getAllEditors(file).length > 1) {
           Dir.openAsText(project, parent, dir);
         } else {
-          Tui.update(file, editor, tui -> printDir(tui, parent, dir));
+          navigate(file, editor, parent, dir);
         }
       }
     }
@@ -440,10 +1158,11 @@ public class Dir implements TypedActionHandler {
     if (file == null) {
       return;
     }
-    VirtualFile dir = getDir(file);
+    VirtualFile dir = getRequestedDir(file);
     if (dir != null) {
-      VfsUtil.markDirtyAndRefresh(false, false, true, dir);
-      Tui.update(file, editor, tui -> printDir(tui, dir, null));
+      // changes found by the refresh are picked up by VfsListener
+      VfsUtil.markDirtyAndRefresh(true, false, true, dir);
+      navigate(file, editor, dir, null);
     }
   }
 
@@ -456,58 +1175,391 @@ public class Dir implements TypedActionHandler {
     if (dir == null) {
       return;
     }
-    VirtualFile f = getFileUnderCaret(editor);
-    if (f != null) {
-      Tui.update(file, editor, tui -> {
-        Set<VirtualFile> newMarkedFiles = new HashSet<>(MARKED_FILES.get(tui.data, new HashSet<>()));
-        if (newMarkedFiles.contains(f)) {
-          newMarkedFiles.remove(f);
-        } else {
-          newMarkedFiles.add(f);
+    DirListing listing = Tui.getTuiData(file).getUserData(FILES);
+    int idx = getEntryUnderCaret(editor);
+    if (listing != null && listing.get(idx) != null) {
+      listing.toggleMark(idx);
+      // a render started before the toggle copied the marks without it
+      Tui.restartPendingUpdate(file);
+      Document doc = editor.getDocument();
+      int line = doc.getLineNumber(editor.getCaretModel().getOffset());
+      Tui.setHighlighters(editor, List.of(createMarkHighlighter(doc.getLineStartOffset(line), doc.getLineEndOffset(line))), listing.isMarked(idx));
+      runAction(editor, dataContext, IdeActions.ACTION_EDITOR_MOVE_CARET_DOWN);
+    }
+  }
+
+  public static void markByPattern(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    setMarkedByPattern(editor, true);
+  }
+
+  public static void unmarkByPattern(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    setMarkedByPattern(editor, false);
+  }
+
+  /**
+   * Marks or unmarks all entries whose names match a glob or a regular expression. Names are matched in background,
+   * only the shown lines get their highlighters updated, the rest are highlighted when the window moves.
+   */
+  private static void setMarkedByPattern(@NotNull Editor editor, boolean mark) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    VirtualFile dir = file != null ? getDir(file) : null;
+    if (dir == null || Tui.getTuiData(file).getUserData(FILES) == null) {
+      return;
+    }
+    String title = (mark ? "Mark" : "Unmark") + " Files";
+    Pair<String, Boolean> input = Messages.showInputDialogWithCheckBox("File name, glob or regular expression:", title,
+                                                                        "Regular expression", false, true, null, null, null);
+    String pattern = input.first;
+    if (StringUtil.isEmptyOrSpaces(pattern)) {
+      return;
+    }
+    Predicate<String> matcher;
+    if (input.second) {
+      try {
+        Pattern regex = Pattern.compile(pattern);
+        matcher = name -> regex.matcher(name).find();
+      } catch (PatternSyntaxException e) {
+        Messages.showErrorDialog(editor.getProject(), e.getDescription(), CommonBundle.getErrorTitle());
+        return;
+      }
+    } else {
+      PathMatcher pathMatcher = Find.createMatcher(pattern.trim());
+      matcher = name -> pathMatcher.matches(Path.of(name));
+    }
+    // skip . and ..
+    setMarkedByMatcher(file, editor, dir.getParent() != null ? 2 : 1, matcher, mark);
+  }
+
+  private static void setMarkedByMatcher(@NotNull TuiFile file, @NotNull Editor editor, int from,
+                                         @NotNull Predicate<String> matcher, boolean mark) {
+    DirListing listing = Tui.getTuiData(file).getUserData(FILES);
+    if (listing == null) {
+      return;
+    }
+    ReadAction.nonBlocking(() -> listing.findMatching(from, matcher))
+      .expireWhen(() -> editor.isDisposed() || !file.isValid())
+      .finishOnUiThread(ModalityState.defaultModalityState(), matched -> {
+        if (Tui.getTuiData(file).getUserData(FILES) != listing) {
+          // the listing was replaced while matching, match the new one
+          setMarkedByMatcher(file, editor, from, matcher, mark);
+          return;
         }
-        tui.newData.putUserData(MARKED_FILES, newMarkedFiles);
-        printDir(tui, dir, f);
+        setMarked(file, editor, listing, matched, mark);
+      })
+      .submit(AppExecutorUtil.getAppExecutorService());
+  }
+
+  private static void setMarked(@NotNull TuiFile file, @NotNull Editor editor, @NotNull DirListing listing,
+                                int @NotNull [] matched, boolean mark) {
+    listing.setMarked(matched, mark);
+    // a render started before the change copied the marks without it
+    Tui.restartPendingUpdate(file);
+
+    Document doc = editor.getDocument();
+    int windowStart = WINDOW_START.get(Tui.getTuiData(file), 0);
+    List<Tui.Highlighter> highlighters = new ArrayList<>();
+    for (int idx : matched) {
+      int line = idx - windowStart + 1;
+      if (1 <= line && line < doc.getLineCount()) {
+        highlighters.add(createMarkHighlighter(doc.getLineStartOffset(line), doc.getLineEndOffset(line)));
+      }
+    }
+    Tui.setHighlighters(editor, highlighters, mark);
+    String message = (mark ? "Marked " : "Unmarked ") + matched.length + " " + StringUtil.pluralize("entry", matched.length);
+    HintManager.getInstance().showInformationHint(editor, message);
+  }
+
+  /**
+   * Makes the listing editable, edited names are applied as renames with Enter
+   */
+  public static void startEditing(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    VirtualFile dir = file != null ? getDir(file) : null;
+    DirListing listing = file != null ? Tui.getTuiData(file).getUserData(FILES) : null;
+    if (dir == null || listing == null || !dir.equals(getRequestedDir(file))) {
+      return;
+    }
+    if (listing.size() > WINDOW_THRESHOLD) {
+      HintManager.getInstance().showErrorHint(editor, "Too many entries to edit, narrow the listing with / first");
+      return;
+    }
+    int caretEntry = getEntryUnderCaret(editor);
+    if (Tui.update(file, editor, tui -> printEditableEntries(tui, dir, listing, caretEntry)) != null) {
+      Tui.setEditing(file, true);
+    }
+  }
+
+  public static void applyEditing(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    Project project = editor.getProject();
+    VirtualFile dir = file != null ? getDir(file) : null;
+    DirListing listing = file != null ? Tui.getTuiData(file).getUserData(FILES) : null;
+    if (project == null || dir == null || listing == null) {
+      return;
+    }
+    Map<VirtualFile, String> newNames = new LinkedHashMap<>();
+    String error = collectRenames(editor.getDocument(), dir, listing, newNames);
+    if (error != null) {
+      Messages.showErrorDialog(project, error, "Cannot Rename Files");
+      return;
+    }
+    if (!newNames.isEmpty() && !FileOps.rename(project, newNames)) {
+      return;
+    }
+    stopEditing(file, editor, dir, listing.get(getEntryUnderCaret(editor)));
+  }
+
+  public static void cancelEditing(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    VirtualFile dir = file != null ? getDir(file) : null;
+    DirListing listing = file != null ? Tui.getTuiData(file).getUserData(FILES) : null;
+    if (dir != null && listing != null) {
+      stopEditing(file, editor, dir, listing.get(getEntryUnderCaret(editor)));
+    }
+  }
+
+  private static void stopEditing(@NotNull TuiFile file, @NotNull Editor editor, @NotNull VirtualFile dir, @Nullable VirtualFile focus) {
+    Tui.setEditing(file, false);
+    editor.getCaretModel().removeSecondaryCarets();
+    navigate(file, editor, dir, focus);
+  }
+
+  public static void toggleDetailed(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    if (file == null) {
+      return;
+    }
+    VirtualFile dir = getDir(file);
+    if (dir != null) {
+      boolean detailed = DETAILED.get(Tui.getTuiData(file), false);
+      VirtualFile focus = getFileUnderCaret(editor);
+      setRequestedDir(file, dir);
+      Tui.updateAsync(file, editor, tui -> {
+        tui.newData.putUserData(DETAILED, !detailed);
+        printDir(tui, file.getProject(), dir, focus);
+      });
+    }
+  }
+
+  public static void toggleSort(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    if (file == null) {
+      return;
+    }
+    VirtualFile dir = getDir(file);
+    if (dir != null) {
+      SortOrder sort = SORT.get(Tui.getTuiData(file), SortOrder.NAME);
+      SortOrder newSort = SortOrder.values()[(sort.ordinal() + 1) % SortOrder.values().length];
+      VirtualFile focus = getFileUnderCaret(editor);
+      setRequestedDir(file, dir);
+      Tui.updateAsync(file, editor, tui -> {
+        tui.newData.putUserData(SORT, newSort);
+        printDir(tui, file.getProject(), dir, focus);
       });
-      down(editor, charTyped, dataContext);
+    }
+  }
+
+  public static void diskUsageUnderCaret(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    VirtualFile f = getFileUnderCaret(editor);
+    if (f != null && f.isDirectory()) {
+      computeDiskUsage(editor, Collections.singletonList(f));
+    }
+  }
+
+  public static void diskUsageOfAllDirs(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    DirListing files = file != null ? Tui.getTuiData(file).getUserData(FILES) : null;
+    VirtualFile dir = file != null ? getDir(file) : null;
+    if (files != null && dir != null) {
+      List<VirtualFile> dirs = new ArrayList<>();
+      for (int i = dir.getParent() != null ? 2 : 1; i < files.size(); i++) {
+        VirtualFile f = files.get(i);
+        if (f != null && f.isDirectory()) {
+          dirs.add(f);
+        }
+      }
+      computeDiskUsage(editor, dirs);
+    }
+  }
+
+  /**
+   * Computes recursive sizes of the directories in background, the listing shows each size once it is computed
+   */
+  private static void computeDiskUsage(@NotNull Editor editor, @NotNull List<VirtualFile> dirs) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    Project project = editor.getProject();
+    VirtualFile dir = file != null ? getDir(file) : null;
+    if (project == null || dir == null || dirs.isEmpty()) {
+      return;
+    }
+    new Task.Backgroundable(project, "Computing disk usage", true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        indicator.setIndeterminate(false);
+        List<Future<Long>> tasks = new ArrayList<>();
+        for (VirtualFile d : dirs) {
+          if (d.isInLocalFileSystem()) {
+            tasks.add(DiskUsage.compute(d.toNioPath(), indicator, size -> {
+              // "." line of the directory's own listing shows the size
+              DirSnapshots.getInstance(project).invalidate(d.getPath());
+              scheduleRefresh(project, file, dir);
+            }));
+          }
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+          indicator.setFraction((double) i / tasks.size());
+          try {
+            tasks.get(i).get();
+          } catch (CancellationException | InterruptedException e) {
+            return;
+          } catch (ExecutionException e) {
+            if (indicator.isCanceled()) {
+              return;
+            }
+            LOG.warn(e);
+          }
+        }
+      }
+    }.queue();
+  }
+
+  public static void findFiles(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    Project project = editor.getProject();
+    VirtualFile dir = getDir(editor.getVirtualFile());
+    if (project == null || dir == null || !dir.isInLocalFileSystem()) {
+      return;
+    }
+    String pattern = Messages.showInputDialog(project, "File name or glob pattern:", "Find Files in " + dir.getPath(), null);
+    if (!StringUtil.isEmptyOrSpaces(pattern)) {
+      Find.open(project, dir.toNioPath(), pattern.trim());
     }
   }
 
   public static void deleteFile(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
-    Set<VirtualFile> files = getSelectedFiles(editor);
+    List<VirtualFile> files = getSelectedFiles(editor);
     if (!files.isEmpty()) {
       int count = files.size();
       String msg = count == 1 ?
               "Delete file " + files.iterator().next().getPath() + "?" :
               "Delete file " + count + " " + StringUtil.pluralize("file", count) + "?";
       String title = "Delete " + StringUtil.pluralize("File", count);
-      if (Messages.showYesNoDialog(msg, title, Messages.getQuestionIcon()) == Messages.YES) {
-        ApplicationManager.getApplication().runWriteAction(() -> {
-          try {
-            for (VirtualFile f : files) {
-              f.delete("Tui");
-            }
-          } catch (IOException e) {
-            Messages.showErrorDialog(editor.getProject(), "Failed to delete file", CommonBundle.getErrorTitle());
-          }
-        });
-        refresh(editor, charTyped, dataContext);
+      Project project = editor.getProject();
+      if (project != null && Messages.showYesNoDialog(msg, title, Messages.getQuestionIcon()) == Messages.YES) {
+        FileOps.delete(project, files);
       }
     } else {
       Messages.showErrorDialog(editor.getProject(), "No file selected", CommonBundle.getErrorTitle());
     }
   }
 
+  public static void copyFiles(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    transferFiles(editor, false);
+  }
+
+  public static void moveFiles(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    transferFiles(editor, true);
+  }
+
+  private static void transferFiles(@NotNull Editor editor, boolean move) {
+    Project project = editor.getProject();
+    VirtualFile dir = getDir(editor.getVirtualFile());
+    List<VirtualFile> files = getSelectedFiles(editor);
+    if (project == null || dir == null) {
+      return;
+    }
+    if (files.isEmpty()) {
+      Messages.showErrorDialog(project, "No file selected", CommonBundle.getErrorTitle());
+      return;
+    }
+    String title = (move ? "Move " : "Copy ") + (files.size() == 1 ? files.get(0).getName() : files.size() + " Files") + " To";
+    TransferDialog dialog = new TransferDialog(project, dir, title);
+    if (!dialog.showAndGet()) {
+      return;
+    }
+    VirtualFile targetDir = dialog.getSelectedDir();
+    if (targetDir == null || !targetDir.isDirectory() || !targetDir.isInLocalFileSystem()) {
+      Messages.showErrorDialog(project, "Directory not found", CommonBundle.getErrorTitle());
+      return;
+    }
+    if (move) {
+      FileOps.move(project, files, targetDir, dialog.getConflictPolicy());
+    } else {
+      FileOps.copy(project, files, targetDir, dialog.getConflictPolicy());
+    }
+  }
+
   /**
    * Returns either marked files or a file under caret
    */
   @NotNull
-  private static Set<VirtualFile> getSelectedFiles(@NotNull Editor editor) {
-    Set<VirtualFile> markedFiles = Tui.getTuiData(editor.getVirtualFile()).getUserData(MARKED_FILES);
-    if (markedFiles != null && !markedFiles.isEmpty()) {
-      return markedFiles;
+  private static List<VirtualFile> getSelectedFiles(@NotNull Editor editor) {
+    DirListing listing = Tui.getTuiData(editor.getVirtualFile()).getUserData(FILES);
+    if (listing != null && listing.hasMarks()) {
+      return listing.getMarkedFiles();
     }
     VirtualFile f = getFileUnderCaret(editor);
-    return f != null ? Set.of(f) : Collections.emptySet();
+    return f != null ? List.of(f) : Collections.emptyList();
+  }
+
+  enum SortOrder {
+    NAME, SIZE, TIME
+  }
+
+  /**
+   * Re-renders open directory buffers affected by VFS changes. Events are coalesced
+   * per buffer, so a burst of changes results in a single update.
+   */
+  public static class VfsListener implements BulkFileListener {
+    @Override
+    public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+      if (!TuiService.isLoaded()) {
+        return;
+      }
+      Set<String> changedDirs = new HashSet<>();
+      for (VFileEvent event : events) {
+        String path = event.getPath();
+        changedDirs.add(path);
+        changedDirs.add(PathUtil.getParentPath(path));
+        if (event instanceof VFileMoveEvent) {
+          changedDirs.add(((VFileMoveEvent) event).getOldParent().getPath());
+        } else if (event instanceof VFilePropertyChangeEvent && ((VFilePropertyChangeEvent) event).isRename()) {
+          changedDirs.add(((VFilePropertyChangeEvent) event).getOldPath());
+        }
+      }
+      TuiService.getInstance().dirsChanged(changedDirs);
+      DiskUsage.invalidate(changedDirs);
+      for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+        FileEditorManager editorManager = FileEditorManager.getInstance(project);
+        for (VirtualFile openFile : editorManager.getOpenFiles()) {
+          if (!(openFile instanceof TuiFile) || !(Tui.getTypingHandler(openFile) instanceof Dir)) {
+            continue;
+          }
+          VirtualFile dir = getDir(openFile);
+          if (dir != null && changedDirs.contains(dir.getPath())) {
+            TuiFile file = (TuiFile) openFile;
+            scheduleRefresh(project, file, dir);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Schedules a re-render of the buffer showing the directory, refreshes scheduled in a short period are merged
+   */
+  private static void scheduleRefresh(@NotNull Project project, @NotNull TuiFile file, @NotNull VirtualFile dir) {
+    TuiService.getInstance().scheduleRefresh(file, () -> {
+      if (!dir.equals(getRequestedDir(file)) || Tui.isEditing(file)) {
+        // navigation in progress will show the new state, editing shows it when finished
+        return;
+      }
+      for (FileEditor fileEditor : FileEditorManager.getInstance(project).getAllEditors(file)) {
+        if (fileEditor instanceof TextEditor) {
+          Tui.updateAsync(file, ((TextEditor) fileEditor).getEditor(), tui -> printDir(tui, project, dir, null));
+          return;
+        }
+      }
+    });
   }
 
   private static class NavigatableDirItem implements Navigatable {
@@ -0,0 +1,170 @@
+package tui;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Attributes of directory children read in a single pass over the directory.
+ * Attributes are cached per directory generation, see {@link TuiService#getDirGeneration(String)}.
+ */
+final class DirAttributes {
+  private static final Logger LOG = Logger.getInstance(DirAttributes.class);
+  // children are read in chunks of this size in parallel
+  private static final int CHUNK_SIZE = 1000;
+  private static final int CACHE_SIZE = 16;
+  private static final Map<String, DirAttributes> ourCache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, DirAttributes> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  static final DirAttributes EMPTY = new DirAttributes(-1, Collections.emptyMap());
+
+  private final long myGeneration;
+  private final Map<String, Attributes> myAttributes;
+  private final int mySizeWidth;
+
+  private DirAttributes(long generation, @NotNull Map<String, Attributes> attributes) {
+    myGeneration = generation;
+    myAttributes = attributes;
+    long maxSize = 0;
+    for (Attributes a : attributes.values()) {
+      maxSize = Math.max(maxSize, a.size);
+    }
+    mySizeWidth = String.valueOf(maxSize).length();
+  }
+
+  /**
+   * Returns attributes of the directory children by name, "." and ".." are mapped to
+   * the directory itself and its parent
+   */
+  static @NotNull DirAttributes get(@NotNull VirtualFile dir) {
+    if (!dir.isInLocalFileSystem()) {
+      return EMPTY;
+    }
+    String path = dir.getPath();
+    long generation = TuiService.getInstance().getDirGeneration(path);
+    synchronized (ourCache) {
+      DirAttributes cached = ourCache.get(path);
+      if (cached != null && cached.myGeneration == generation) {
+        return cached;
+      }
+    }
+    DirAttributes result = new DirAttributes(generation, read(dir.toNioPath()));
+    synchronized (ourCache) {
+      ourCache.put(path, result);
+    }
+    return result;
+  }
+
+  private static @NotNull Map<String, Attributes> read(@NotNull Path dir) {
+    List<Path> children = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path child : stream) {
+        children.add(child);
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      LOG.debug("Cannot list " + dir, e);
+    }
+    Map<String, Attributes> result = new ConcurrentHashMap<>(children.size() + 2);
+    if (children.size() <= CHUNK_SIZE) {
+      readAttributes(children, result);
+    } else {
+      // workers run under the caller's indicator, so a cancelled render stops reading
+      ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+      List<Future<?>> chunks = new ArrayList<>();
+      for (int i = 0; i < children.size(); i += CHUNK_SIZE) {
+        List<Path> chunk = children.subList(i, Math.min(i + CHUNK_SIZE, children.size()));
+        chunks.add(TuiService.getInstance().getPool().submit(
+          () -> ProgressManager.getInstance().executeProcessUnderProgress(() -> readAttributes(chunk, result), indicator)));
+      }
+      for (Future<?> chunk : chunks) {
+        ProgressIndicatorUtils.awaitWithCheckCanceled(chunk);
+      }
+    }
+    Attributes dirAttributes = readAttributes(dir);
+    if (dirAttributes != null) {
+      result.put(".", dirAttributes);
+    }
+    Path parent = dir.getParent();
+    Attributes parentAttributes = parent != null ? readAttributes(parent) : null;
+    if (parentAttributes != null) {
+      result.put("..", parentAttributes);
+    }
+    return result;
+  }
+
+  private static void readAttributes(@NotNull List<Path> children, @NotNull Map<String, Attributes> result) {
+    ProgressManager.checkCanceled();
+    for (Path child : children) {
+      Attributes attributes = readAttributes(child);
+      if (attributes != null) {
+        result.put(child.getFileName().toString(), attributes);
+      }
+    }
+  }
+
+  private static @Nullable Attributes readAttributes(@NotNull Path path) {
+    try {
+      BasicFileAttributes attributes;
+      String permissions;
+      try {
+        PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        permissions = PosixFilePermissions.toString(posix.permissions());
+        attributes = posix;
+      } catch (UnsupportedOperationException e) {
+        DosFileAttributes dos = Files.readAttributes(path, DosFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        permissions = dos.isReadOnly() ? "r-xr-xr-x" : "rwxrwxrwx";
+        attributes = dos;
+      }
+      String linkTarget = attributes.isSymbolicLink() ? Files.readSymbolicLink(path).toString() : null;
+      char type = attributes.isSymbolicLink() ? 'l' : attributes.isDirectory() ? 'd' : '-';
+      return new Attributes(type + permissions, attributes.size(), attributes.lastModifiedTime().toMillis(), linkTarget);
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.debug("Cannot read attributes of " + path, e);
+      return null;
+    }
+  }
+
+  @Nullable Attributes get(@NotNull String name) {
+    return myAttributes.get(name);
+  }
+
+  boolean isEmpty() {
+    return myAttributes.isEmpty();
+  }
+
+  int getSizeWidth() {
+    return mySizeWidth;
+  }
+
+  static final class Attributes {
+    final String permissions;
+    final long size;
+    final long modified;
+    final String linkTarget;
+
+    Attributes(@NotNull String permissions, long size, long modified, @Nullable String linkTarget) {
+      this.permissions = permissions;
+      this.size = size;
+      this.modified = modified;
+      this.linkTarget = linkTarget;
+    }
+  }
+}
@@ -0,0 +1,422 @@
+package tui;
+
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.openapi.vfs.newvfs.ManagingFS;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Entries of a directory listing in the order they are shown: the directory itself, its parent
+ * (if any), subdirectories and files. Entries are stored as VFS file ids, marks as a bitset
+ * indexed by entry. Entry i is shown on line i - windowStart + 1 (line 0 is the header).
+ * <p>
+ * A filtered listing is a view of a subset of entries of its base listing, it shares marks with the base.
+ */
+final class DirListing {
+  private final int[] myIds;
+  // only for listings with files which have no VFS id
+  private final VirtualFile[] myFiles;
+  // only for filtered listings: the listing being filtered and ascending indices of its entries shown by this one
+  private final DirListing myBase;
+  private final int[] myView;
+  private final BitSet myMarks;
+  private int myFirstEntry;
+  private int myFirstFile;
+  private boolean mySortedByName;
+  // names and lower-case names of entries, built with the listing so that lookups by name don't touch VFS
+  private volatile String[] myNames;
+  private volatile String[] myKeys;
+  private volatile NameIndex myIndex;
+  // only for copies: the listing copied from, it owns the name index shared by all its copies
+  private DirListing myOrigin;
+  // listings kept for a long time don't hold an index, their copies build their own
+  private boolean myUnindexed;
+
+  private DirListing(int @Nullable [] ids, VirtualFile @Nullable [] files) {
+    myIds = ids;
+    myFiles = files;
+    myBase = null;
+    myView = null;
+    myMarks = new BitSet();
+    myFirstFile = size();
+  }
+
+  private DirListing(@NotNull DirListing base, int @NotNull [] view) {
+    myIds = null;
+    myFiles = null;
+    myBase = base;
+    myView = view;
+    myMarks = base.myMarks;
+  }
+
+  /**
+   * Creates a listing of the entries, should be called in background as it reads names of all entries
+   */
+  static @NotNull DirListing create(@NotNull List<VirtualFile> entries) {
+    int[] ids = new int[entries.size()];
+    String[] names = new String[entries.size()];
+    String[] keys = new String[entries.size()];
+    boolean hasIds = true;
+    for (int i = 0; i < ids.length; i++) {
+      VirtualFile entry = entries.get(i);
+      names[i] = entry.getName();
+      keys[i] = StringUtil.toLowerCase(names[i]);
+      if (entry instanceof VirtualFileWithId) {
+        ids[i] = ((VirtualFileWithId) entry).getId();
+      } else {
+        hasIds = false;
+      }
+    }
+    DirListing result = hasIds ? new DirListing(ids, null) : new DirListing(null, entries.toArray(VirtualFile.EMPTY_ARRAY));
+    result.myNames = names;
+    result.myKeys = keys;
+    return result;
+  }
+
+  /**
+   * Returns a listing of the same entries without marks, a filtered listing is copied unfiltered
+   */
+  @NotNull DirListing copy() {
+    if (myBase != null) {
+      return myBase.copy();
+    }
+    DirListing result = new DirListing(myIds, myFiles);
+    result.setOrder(myFirstEntry, myFirstFile, mySortedByName);
+    result.myNames = myNames;
+    result.myKeys = myKeys;
+    result.myOrigin = myUnindexed ? null : myOrigin != null ? myOrigin : this;
+    return result;
+  }
+
+  /**
+   * Returns a copy which never holds a name index, neither shares one: its copies build their own
+   */
+  @NotNull DirListing copyUnindexed() {
+    DirListing result = copy();
+    result.myOrigin = null;
+    result.myUnindexed = true;
+    return result;
+  }
+
+  /**
+   * Estimated retained size of names kept with the listing
+   */
+  long getNamesBytes() {
+    String[] names = myNames;
+    String[] keys = myKeys;
+    long result = 0;
+    for (int i = 0; names != null && i < names.length; i++) {
+      result += getStringBytes(names[i]);
+    }
+    for (int i = 0; keys != null && i < keys.length; i++) {
+      // a key of a lower-case name is the name itself
+      result += names != null && i < names.length && keys[i] == names[i] ? 8 : getStringBytes(keys[i]);
+    }
+    return result;
+  }
+
+  private static long getStringBytes(@Nullable String s) {
+    return s != null ? 48 + 2L * s.length() : 8;
+  }
+
+  /**
+   * Describes the order of entries: entries before firstEntry are "." and "..", directories go
+   * before firstFile, files after it. If sortedByName is true, both directories and files
+   * are sorted by name ignoring case.
+   */
+  void setOrder(int firstEntry, int firstFile, boolean sortedByName) {
+    myFirstEntry = firstEntry;
+    myFirstFile = firstFile;
+    mySortedByName = sortedByName;
+  }
+
+  /**
+   * Returns the first directory, or the first file if no directory matches, whose name starts with the prefix
+   * ignoring case, or -1. Uses binary search if entries are sorted by name.
+   */
+  int findByPrefix(@NotNull String prefix) {
+    String[] keys = getKeys();
+    String key = StringUtil.toLowerCase(prefix);
+    int result = findByPrefix(keys, key, myFirstEntry, myFirstFile);
+    return result != -1 ? result : findByPrefix(keys, key, myFirstFile, keys.length);
+  }
+
+  private int findByPrefix(String @NotNull [] keys, @NotNull String prefix, int from, int to) {
+    if (!mySortedByName) {
+      for (int i = from; i < to; i++) {
+        if (keys[i].startsWith(prefix)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (String.CASE_INSENSITIVE_ORDER.compare(keys[mid], prefix) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low < to && keys[low].startsWith(prefix) ? low : -1;
+  }
+
+  private String @NotNull [] getNames() {
+    String[] names = myNames;
+    if (names == null) {
+      names = new String[size()];
+      for (int i = 0; i < names.length; i++) {
+        VirtualFile f = get(i);
+        names[i] = f != null ? f.getName() : null;
+      }
+      myNames = names;
+    }
+    return names;
+  }
+
+  private String @NotNull [] getKeys() {
+    String[] keys = myKeys;
+    if (keys == null) {
+      keys = new String[size()];
+      for (int i = 0; i < keys.length; i++) {
+        VirtualFile f = get(i);
+        keys[i] = f != null ? StringUtil.toLowerCase(f.getName()) : "";
+      }
+      myKeys = keys;
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the name index, built once for a listing and all its copies
+   */
+  private @NotNull NameIndex getIndex() {
+    DirListing owner = myOrigin != null ? myOrigin : this;
+    if (owner.myUnindexed) {
+      return new NameIndex(getKeys());
+    }
+    NameIndex index = owner.myIndex;
+    if (index == null) {
+      synchronized (owner) {
+        index = owner.myIndex;
+        if (index == null) {
+          index = new NameIndex(owner.getKeys());
+          owner.myIndex = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Returns a listing of the entries whose names contain the query ignoring case, "." and ".." are always kept.
+   * Filtering a filtered listing filters its base.
+   */
+  @NotNull DirListing filter(@NotNull String query) {
+    if (myBase != null) {
+      return myBase.filter(query);
+    }
+    int[] matches = getIndex().find(query);
+    IntArrayList view = new IntArrayList(myFirstEntry + matches.length);
+    for (int i = 0; i < myFirstEntry; i++) {
+      view.add(i);
+    }
+    int firstFile = -1;
+    for (int i : matches) {
+      if (i >= myFirstEntry) {
+        if (firstFile == -1 && i >= myFirstFile) {
+          firstFile = view.size();
+        }
+        view.add(i);
+      }
+    }
+    DirListing result = new DirListing(this, view.toIntArray());
+    result.setOrder(myFirstEntry, firstFile != -1 ? firstFile : view.size(), mySortedByName);
+    String[] names = getNames();
+    String[] keys = getKeys();
+    String[] viewNames = new String[view.size()];
+    String[] viewKeys = new String[view.size()];
+    for (int i = 0; i < viewKeys.length; i++) {
+      viewNames[i] = names[view.getInt(i)];
+      viewKeys[i] = keys[view.getInt(i)];
+    }
+    result.myNames = viewNames;
+    result.myKeys = viewKeys;
+    return result;
+  }
+
+  boolean isFiltered() {
+    return myBase != null;
+  }
+
+  @NotNull DirListing unfiltered() {
+    return myBase != null ? myBase : this;
+  }
+
+  /**
+   * Returns the index in this listing of an entry of the base listing, or -1 if it is filtered out
+   */
+  int fromBaseIndex(int baseIdx) {
+    if (myView == null) {
+      return baseIdx;
+    }
+    int idx = Arrays.binarySearch(myView, baseIdx);
+    return idx >= 0 ? idx : -1;
+  }
+
+  int indexOf(@NotNull VirtualFile file) {
+    if (myBase != null) {
+      int baseIdx = myBase.indexOf(file);
+      return baseIdx != -1 ? fromBaseIndex(baseIdx) : -1;
+    }
+    if (myIds == null) {
+      return Arrays.asList(myFiles).indexOf(file);
+    }
+    if (file instanceof VirtualFileWithId) {
+      int id = ((VirtualFileWithId) file).getId();
+      for (int i = 0; i < myIds.length; i++) {
+        if (myIds[i] == id) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  int size() {
+    return myView != null ? myView.length : myIds != null ? myIds.length : myFiles.length;
+  }
+
+  @Nullable VirtualFile get(int idx) {
+    if (idx < 0 || size() <= idx) {
+      return null;
+    }
+    if (myBase != null) {
+      return myBase.get(myView[idx]);
+    }
+    return myIds != null ? ManagingFS.getInstance().findFileById(myIds[idx]) : myFiles[idx];
+  }
+
+  private int toBaseIndex(int idx) {
+    return myView != null ? myView[idx] : idx;
+  }
+
+  boolean isMarked(int idx) {
+    return 0 <= idx && idx < size() && myMarks.get(toBaseIndex(idx));
+  }
+
+  void toggleMark(int idx) {
+    myMarks.flip(toBaseIndex(idx));
+  }
+
+  /**
+   * Sets or clears marks of the entries
+   */
+  void setMarked(int @NotNull [] indices, boolean marked) {
+    for (int idx : indices) {
+      myMarks.set(toBaseIndex(idx), marked);
+    }
+  }
+
+  /**
+   * Returns indices of entries starting from {@code from} whose names match the predicate.
+   * Should be called in background, checks for cancellation while matching.
+   */
+  int @NotNull [] findMatching(int from, @NotNull Predicate<String> matcher) {
+    String[] names = getNames();
+    IntArrayList result = new IntArrayList();
+    for (int i = Math.max(from, 0); i < names.length; i++) {
+      if ((i & 0xfff) == 0) {
+        ProgressManager.checkCanceled();
+      }
+      if (names[i] != null && matcher.test(names[i])) {
+        result.add(i);
+      }
+    }
+    return result.toIntArray();
+  }
+
+  boolean hasMarks() {
+    if (myView != null) {
+      for (int baseIdx : myView) {
+        if (myMarks.get(baseIdx)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return !myMarks.isEmpty();
+  }
+
+  /**
+   * Returns valid marked files, for a filtered listing only the shown ones
+   */
+  @NotNull List<VirtualFile> getMarkedFiles() {
+    List<VirtualFile> result = new ArrayList<>();
+    if (myView != null) {
+      for (int idx = 0; idx < myView.length; idx++) {
+        if (myMarks.get(myView[idx])) {
+          addValid(result, get(idx));
+        }
+      }
+      return result;
+    }
+    for (int i = myMarks.nextSetBit(0); i >= 0; i = myMarks.nextSetBit(i + 1)) {
+      addValid(result, get(i));
+    }
+    return result;
+  }
+
+  private static void addValid(@NotNull List<VirtualFile> files, @Nullable VirtualFile f) {
+    if (f != null && f.isValid()) {
+      files.add(f);
+    }
+  }
+
+  /**
+   * Marks entries which are marked in another listing of the same directory, including entries
+   * filtered out of the other listing. This listing must not be filtered.
+   */
+  void copyMarks(@NotNull DirListing other) {
+    if (other.myBase != null) {
+      other = other.myBase;
+    }
+    if (other.myMarks.isEmpty()) {
+      return;
+    }
+    if (myIds != null && other.myIds != null) {
+      IntSet markedIds = new IntOpenHashSet(other.myMarks.cardinality());
+      for (int i = other.myMarks.nextSetBit(0); i >= 0; i = other.myMarks.nextSetBit(i + 1)) {
+        markedIds.add(other.myIds[i]);
+      }
+      for (int i = 0; i < myIds.length; i++) {
+        if (markedIds.contains(myIds[i])) {
+          myMarks.set(i);
+        }
+      }
+    } else {
+      Set<VirtualFile> markedFiles = new HashSet<>(other.getMarkedFiles());
+      for (int i = 0; i < size(); i++) {
+        if (markedFiles.contains(get(i))) {
+          myMarks.set(i);
+        }
+      }
+    }
+  }
+}
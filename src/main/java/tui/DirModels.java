@@ -0,0 +1,111 @@
+package tui;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Listings of directories shown in Dir buffers of a project. Buffers showing the same directory, e.g. in
+ * several splits, share its listing, so the directory is listed and sorted once per change. A model lives
+ * while some buffer shows its directory. Marks, caret and filter stay per buffer in its copy of the listing.
+ */
+@Service(Service.Level.PROJECT)
+final class DirModels {
+  private static final Key<String> MODEL_PATH = Key.create("tui.dir.modelPath");
+
+  // guarded by itself
+  private final Map<String, Model> myModels = new HashMap<>();
+
+  static @NotNull DirModels getInstance(@NotNull Project project) {
+    return project.getService(DirModels.class);
+  }
+
+  /**
+   * Makes the buffer a user of the directory model and releases the model of the directory it showed before,
+   * a null directory only releases the model
+   */
+  void setDir(@NotNull TuiFile file, @Nullable String path) {
+    String oldPath = file.getUserData(MODEL_PATH);
+    if (Objects.equals(path, oldPath)) {
+      return;
+    }
+    file.putUserData(MODEL_PATH, path);
+    synchronized (myModels) {
+      Model oldModel = oldPath != null ? myModels.get(oldPath) : null;
+      if (oldModel != null && --oldModel.myUsers == 0) {
+        myModels.remove(oldPath);
+      }
+      if (path != null) {
+        myModels.computeIfAbsent(path, p -> new Model()).myUsers++;
+      }
+    }
+  }
+
+  /**
+   * Returns the shared listing of the directory in the sort order, the listing is computed if the directory
+   * generation changed since. While one buffer computes the listing, others showing the directory wait for it.
+   * Listings of directories not shown in any buffer are not kept. The listing has no marks and must be copied before use.
+   */
+  @NotNull DirListing getListing(@NotNull String path, @NotNull String order, long generation, @NotNull Supplier<DirListing> compute) {
+    Model model;
+    synchronized (myModels) {
+      model = myModels.get(path);
+    }
+    if (model == null) {
+      return compute.get();
+    }
+    lockCancellably(model.myLock);
+    try {
+      Listing listing = model.myListings.get(order);
+      if (listing == null || listing.generation != generation) {
+        listing = new Listing(generation, compute.get());
+        model.myListings.put(order, listing);
+      }
+      return listing.listing;
+    } finally {
+      model.myLock.unlock();
+    }
+  }
+
+  /**
+   * Waits for the lock in a read action without blocking a pending write action
+   */
+  private static void lockCancellably(@NotNull ReentrantLock lock) {
+    try {
+      while (!lock.tryLock(10, TimeUnit.MILLISECONDS)) {
+        ProgressManager.checkCanceled();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class Model {
+    private final ReentrantLock myLock = new ReentrantLock();
+    // guarded by myLock, by sort order
+    private final Map<String, Listing> myListings = new HashMap<>();
+    // guarded by myModels
+    private int myUsers;
+  }
+
+  private static final class Listing {
+    final long generation;
+    final DirListing listing;
+
+    Listing(long generation, @NotNull DirListing listing) {
+      this.generation = generation;
+      this.listing = listing;
+    }
+  }
+}
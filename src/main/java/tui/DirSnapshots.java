@@ -0,0 +1,121 @@
+package tui;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rendered directory listings of a project, so that revisiting a directory doesn't list and render it again.
+ * Snapshots are valid for a directory generation, see {@link TuiService#getDirGeneration(String)}, and
+ * evicted in LRU order once their estimated memory footprint exceeds {@link #MAX_BYTES}.
+ */
+@Service(Service.Level.PROJECT)
+final class DirSnapshots {
+  private static final long MAX_BYTES = 32 * 1024 * 1024;
+
+  private final Map<String, Snapshot> mySnapshots = new LinkedHashMap<>(16, 0.75f, true);
+  private long myBytes;
+
+  static @NotNull DirSnapshots getInstance(@NotNull Project project) {
+    return project.getService(DirSnapshots.class);
+  }
+
+  /**
+   * Returns the snapshot of the directory rendered with the options, or null if there is none or the directory changed since
+   */
+  @Nullable Snapshot get(@NotNull String path, @NotNull String options) {
+    long generation = TuiService.getInstance().getDirGeneration(path);
+    String key = getKey(path, options);
+    synchronized (mySnapshots) {
+      Snapshot snapshot = mySnapshots.get(key);
+      if (snapshot != null && snapshot.generation != generation) {
+        remove(key);
+        return null;
+      }
+      return snapshot;
+    }
+  }
+
+  void put(@NotNull String path, @NotNull String options, @NotNull Snapshot snapshot) {
+    String key = getKey(path, options);
+    synchronized (mySnapshots) {
+      remove(key);
+      mySnapshots.put(key, snapshot);
+      myBytes += snapshot.getBytes();
+      for (Iterator<Snapshot> it = mySnapshots.values().iterator(); myBytes > MAX_BYTES && it.hasNext(); ) {
+        myBytes -= it.next().getBytes();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops snapshots of the directory rendered with any options
+   */
+  void invalidate(@NotNull String path) {
+    String prefix = getKey(path, "");
+    synchronized (mySnapshots) {
+      for (Iterator<Map.Entry<String, Snapshot>> it = mySnapshots.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<String, Snapshot> entry = it.next();
+        if (entry.getKey().startsWith(prefix)) {
+          myBytes -= entry.getValue().getBytes();
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private void remove(@NotNull String key) {
+    Snapshot removed = mySnapshots.remove(key);
+    if (removed != null) {
+      myBytes -= removed.getBytes();
+    }
+  }
+
+  private static @NotNull String getKey(@NotNull String path, @NotNull String options) {
+    return path + "\n" + options;
+  }
+
+  /**
+   * Text and highlighters of a rendered listing with the listing itself, the listing has no marks
+   * and must be copied before use, see {@link DirListing#copyUnindexed()}
+   */
+  static final class Snapshot {
+    final long generation;
+    final String text;
+    final List<Tui.Highlighter> highlighters;
+    final DirListing listing;
+    final int windowStart;
+    final DirAttributes attributes;
+    private final long myBytes;
+
+    Snapshot(long generation,
+             @NotNull String text,
+             @NotNull List<Tui.Highlighter> highlighters,
+             @NotNull DirListing listing,
+             int windowStart,
+             @NotNull DirAttributes attributes) {
+      this.generation = generation;
+      this.text = text;
+      this.highlighters = highlighters;
+      this.listing = listing;
+      this.windowStart = windowStart;
+      this.attributes = attributes;
+      myBytes = 64 + 2L * text.length() + 48L * highlighters.size() + 8L * listing.size() + listing.getNamesBytes();
+    }
+
+    /**
+     * Estimated retained size including names kept with the listing, the listing holds no name index.
+     * Attributes are not counted as they are shared with {@link DirAttributes} cache.
+     */
+    long getBytes() {
+      return myBytes;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package tui;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches directories with java.nio {@link WatchService} and reports changed directories so that they are refreshed in VFS.
+ * Used for directories which are not watched by the IDE, e.g. directories outside of project content.
+ * Directories are registered and polled on the watcher thread, registration may be slow on network file systems.
+ */
+final class DirWatcher implements Disposable {
+  private static final Logger LOG = Logger.getInstance(DirWatcher.class);
+  // how often the watcher thread picks up changes of the watched directories
+  private static final int POLL_MS = 100;
+
+  private final Consumer<VirtualFile> myOnChange;
+  private volatile Set<Path> myWatchedDirs = Set.of();
+  private WatchService myWatchService;
+  private Thread myThread;
+  private boolean myDisposed;
+
+  /**
+   * @param onChange called on the watcher thread with a changed directory
+   */
+  DirWatcher(@NotNull Consumer<VirtualFile> onChange) {
+    myOnChange = onChange;
+  }
+
+  /**
+   * Sets the directories to watch, they are registered later on the watcher thread
+   */
+  synchronized void setWatchedDirs(@NotNull Set<Path> dirs) {
+    if (myDisposed) {
+      return;
+    }
+    myWatchedDirs = dirs;
+    if (myThread == null && !dirs.isEmpty()) {
+      myThread = new Thread(this::run, "Tui directory watcher");
+      myThread.setDaemon(true);
+      myThread.start();
+    }
+  }
+
+  private void run() {
+    WatchService watchService;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+    } catch (IOException e) {
+      LOG.debug("Cannot create watch service", e);
+      return;
+    }
+    synchronized (this) {
+      if (myDisposed) {
+        close(watchService);
+        return;
+      }
+      myWatchService = watchService;
+    }
+    Map<Path, WatchKey> keys = new HashMap<>();
+    Set<Path> registered = null;
+    try {
+      while (true) {
+        Set<Path> dirs = myWatchedDirs;
+        if (dirs != registered) {
+          register(watchService, keys, dirs);
+          registered = dirs;
+        }
+        WatchKey key = watchService.poll(POLL_MS, TimeUnit.MILLISECONDS);
+        if (key == null) {
+          continue;
+        }
+        // only the fact of a change is interesting, the directory is refreshed as a whole
+        key.pollEvents();
+        Path dir = (Path) key.watchable();
+        if (!key.reset()) {
+          // the directory is deleted or not accessible anymore
+          keys.remove(dir);
+        }
+        VirtualFile vDir = LocalFileSystem.getInstance().findFileByNioFile(dir);
+        if (vDir != null) {
+          myOnChange.accept(vDir);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // disposed
+    }
+  }
+
+  private static void register(@NotNull WatchService watchService, @NotNull Map<Path, WatchKey> keys, @NotNull Set<Path> dirs) {
+    for (Iterator<Map.Entry<Path, WatchKey>> it = keys.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Path, WatchKey> entry = it.next();
+      if (!dirs.contains(entry.getKey())) {
+        entry.getValue().cancel();
+        it.remove();
+      }
+    }
+    for (Path dir : dirs) {
+      if (keys.containsKey(dir)) {
+        continue;
+      }
+      try {
+        WatchKey key = dir.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        keys.put(dir, key);
+      } catch (IOException | UnsupportedOperationException e) {
+        LOG.debug("Cannot watch " + dir, e);
+      }
+    }
+  }
+
+  private static void close(@NotNull WatchService watchService) {
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      LOG.debug(e);
+    }
+  }
+
+  @Override
+  public synchronized void dispose() {
+    myDisposed = true;
+    myWatchedDirs = Set.of();
+    if (myWatchService != null) {
+      close(myWatchService);
+      myWatchService = null;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package tui;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongConsumer;
+
+/**
+ * Computes recursive sizes of directories on a fork-join pool. Sizes of all visited
+ * subtrees are cached, cached sizes are invalidated by VFS changes via {@link #invalidate(Collection)}.
+ */
+final class DiskUsage {
+  private static final Logger LOG = Logger.getInstance(DiskUsage.class);
+  private static final int CACHE_SIZE = 100_000;
+  private static final Map<String, Long> ourSizes = new LinkedHashMap<>(1024, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+
+  static @Nullable Long getCachedSize(@NotNull String path) {
+    synchronized (ourSizes) {
+      return ourSizes.get(path);
+    }
+  }
+
+  /**
+   * Computes the size of the directory, the callback is notified once the size is known
+   */
+  static @NotNull Future<Long> compute(@NotNull Path dir, @NotNull ProgressIndicator indicator, @NotNull LongConsumer onComputed) {
+    SizeTask task = new SizeTask(dir, indicator, onComputed);
+    TuiService.getInstance().getPool().execute(task);
+    return task;
+  }
+
+  /**
+   * Drops cached sizes of changed directories and all their ancestors
+   */
+  static void invalidate(@NotNull Collection<String> changedPaths) {
+    synchronized (ourSizes) {
+      if (ourSizes.isEmpty()) {
+        return;
+      }
+      for (String path : changedPaths) {
+        for (String it = path; !it.isEmpty(); it = PathUtil.getParentPath(it)) {
+          ourSizes.remove(it);
+        }
+      }
+    }
+  }
+
+  private static class SizeTask extends RecursiveTask<Long> {
+    private final Path myDir;
+    private final ProgressIndicator myIndicator;
+    private final LongConsumer myOnComputed;
+
+    SizeTask(@NotNull Path dir, @NotNull ProgressIndicator indicator, @Nullable LongConsumer onComputed) {
+      myDir = dir;
+      myIndicator = indicator;
+      myOnComputed = onComputed;
+    }
+
+    @Override
+    protected Long compute() {
+      if (myIndicator.isCanceled()) {
+        throw new CancellationException();
+      }
+      String path = FileUtil.toSystemIndependentName(myDir.toString());
+      Long cached = getCachedSize(path);
+      long size;
+      if (cached != null) {
+        size = cached;
+      } else {
+        size = 0;
+        List<SizeTask> subTasks = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(myDir)) {
+          for (Path child : stream) {
+            try {
+              BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+              if (attributes.isDirectory()) {
+                SizeTask subTask = new SizeTask(child, myIndicator, null);
+                subTask.fork();
+                subTasks.add(subTask);
+              } else {
+                size += attributes.size();
+              }
+            } catch (IOException e) {
+              LOG.debug("Cannot read attributes of " + child, e);
+            }
+          }
+        } catch (IOException | DirectoryIteratorException e) {
+          LOG.debug("Cannot list " + myDir, e);
+        }
+        for (SizeTask subTask : subTasks) {
+          size += subTask.join();
+        }
+        synchronized (ourSizes) {
+          ourSizes.put(path, size);
+        }
+      }
+      if (myOnComputed != null) {
+        myOnComputed.accept(size);
+      }
+      return size;
+    }
+  }
+}
@@ -0,0 +1,502 @@
+package tui;
+
+import com.intellij.CommonBundle;
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.command.undo.GlobalUndoableAction;
+import com.intellij.openapi.command.undo.UndoManager;
+import com.intellij.openapi.command.undo.UnexpectedUndoException;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.util.Pair;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch file operations running in background. Files are processed with NIO on the shared pool,
+ * VFS is refreshed once when the operation finishes and failures are reported in a single summary.
+ */
+final class FileOps {
+  private static final Logger LOG = Logger.getInstance(FileOps.class);
+  private static final int MAX_REPORTED_FAILURES = 20;
+  private static final int PROGRESS_INTERVAL_MS = 100;
+  private static final long TRANSFER_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * What to do when a file with the same name already exists in the target directory.
+   * Existing directories are merged unless the policy is {@link #KEEP_BOTH}.
+   */
+  enum ConflictPolicy {
+    SKIP("Merge directories, skip existing files"),
+    OVERWRITE("Merge directories, overwrite existing files"),
+    KEEP_BOTH("Keep both, rename the copy");
+
+    private final String myText;
+
+    ConflictPolicy(@NotNull String text) {
+      myText = text;
+    }
+
+    @Override
+    public String toString() {
+      return myText;
+    }
+  }
+
+  /**
+   * Deletes the files and directory trees, directory trees are deleted in parallel
+   */
+  static void delete(@NotNull Project project, @NotNull List<VirtualFile> files) {
+    new BatchTask(project, "Deleting files", "delete", files, null) {
+      @Override
+      protected @NotNull Future<Boolean> start(@NotNull Path path) {
+        return TuiService.getInstance().getPool().submit(new DeleteTask(path, this));
+      }
+    }.queue();
+  }
+
+  /**
+   * Copies the files to the target directory, directory trees are copied in parallel
+   */
+  static void copy(@NotNull Project project, @NotNull List<VirtualFile> files, @NotNull VirtualFile targetDir, @NotNull ConflictPolicy policy) {
+    transfer(project, files, targetDir, policy, false);
+  }
+
+  /**
+   * Moves the files to the target directory. Files are renamed where possible, otherwise they are copied and deleted.
+   */
+  static void move(@NotNull Project project, @NotNull List<VirtualFile> files, @NotNull VirtualFile targetDir, @NotNull ConflictPolicy policy) {
+    transfer(project, files, targetDir, policy, true);
+  }
+
+  private static void transfer(@NotNull Project project,
+                               @NotNull List<VirtualFile> files,
+                               @NotNull VirtualFile targetDir,
+                               @NotNull ConflictPolicy policy,
+                               boolean move) {
+    Path target = targetDir.toNioPath();
+    new BatchTask(project, move ? "Moving files" : "Copying files", move ? "move" : "copy", files, targetDir) {
+      @Override
+      protected @NotNull Future<Boolean> start(@NotNull Path path) {
+        Path dest = target.resolve(path.getFileName().toString());
+        if (policy == ConflictPolicy.KEEP_BOTH) {
+          dest = getUniquePath(dest);
+        }
+        if (dest.equals(path)) {
+          // the entry is already in the target directory: nothing to move or skip, overwriting would destroy it
+          if (move || policy == ConflictPolicy.SKIP) {
+            myProcessed.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+          }
+          fail(path, "is already in the target directory, choose '" + ConflictPolicy.KEEP_BOTH + "' to duplicate it");
+          return CompletableFuture.completedFuture(false);
+        }
+        if (dest.startsWith(path)) {
+          fail(path, "cannot " + (move ? "move" : "copy") + " a directory into itself");
+          return CompletableFuture.completedFuture(false);
+        }
+        return TuiService.getInstance().getPool().submit(new TransferTask(path, dest, policy, move, this));
+      }
+    }.queue();
+  }
+
+  /**
+   * Renames the files in one write action and one undoable command. Files whose names are taken by
+   * other renamed files are renamed to temporary names first, so that swaps and cycles (a->b, b->a) work.
+   * The caller is responsible for checking that the new names don't collide.
+   * If a rename fails, the renames done so far are rolled back and the error is shown.
+   */
+  static boolean rename(@NotNull Project project, @NotNull Map<VirtualFile, String> newNames) {
+    Set<String> targetNames = new HashSet<>();
+    for (Map.Entry<VirtualFile, String> entry : newNames.entrySet()) {
+      targetNames.add(getNameKey(entry.getKey(), entry.getValue()));
+    }
+    List<Pair<VirtualFile, String>> steps = new ArrayList<>();
+    Set<String> usedNames = new HashSet<>(targetNames);
+    for (VirtualFile f : newNames.keySet()) {
+      if (targetNames.contains(getNameKey(f, f.getName()))) {
+        String tempName = f.getName();
+        for (int i = 0; usedNames.contains(getNameKey(f, tempName)) || f.getParent().findChild(tempName) != null; i++) {
+          tempName = f.getName() + ".tui-rename-" + i;
+        }
+        usedNames.add(getNameKey(f, tempName));
+        steps.add(Pair.create(f, tempName));
+      }
+    }
+    for (Map.Entry<VirtualFile, String> entry : newNames.entrySet()) {
+      steps.add(Pair.create(entry.getKey(), entry.getValue()));
+    }
+
+    List<Pair<VirtualFile, String>> done = new ArrayList<>(steps.size());
+    try {
+      WriteCommandAction.writeCommandAction(project).withName("Rename Files").run(() -> {
+        try {
+          applyRenames(steps, done);
+        } catch (IOException e) {
+          applyRenames(ContainerUtil.reverse(done), new ArrayList<>());
+          throw e;
+        }
+        UndoManager.getInstance(project).undoableActionPerformed(new GlobalUndoableAction() {
+          @Override
+          public void undo() throws UnexpectedUndoException {
+            runRenames(ContainerUtil.reverse(done));
+          }
+
+          @Override
+          public void redo() throws UnexpectedUndoException {
+            runRenames(steps);
+          }
+        });
+      });
+      return true;
+    } catch (IOException e) {
+      LOG.debug(e);
+      Messages.showErrorDialog(project, "Failed to rename files: " + e.getMessage(), CommonBundle.getErrorTitle());
+      return false;
+    }
+  }
+
+  /**
+   * Applies the renames, collects the reverse renames of the applied ones
+   */
+  private static void applyRenames(@NotNull List<Pair<VirtualFile, String>> renames, @NotNull List<Pair<VirtualFile, String>> done)
+    throws IOException {
+    for (Pair<VirtualFile, String> rename : renames) {
+      VirtualFile f = rename.first;
+      String oldName = f.getName();
+      f.rename(FileOps.class, rename.second);
+      done.add(Pair.create(f, oldName));
+    }
+  }
+
+  private static void runRenames(@NotNull List<Pair<VirtualFile, String>> renames) throws UnexpectedUndoException {
+    try {
+      WriteAction.run(() -> applyRenames(renames, new ArrayList<>()));
+    } catch (IOException e) {
+      throw new UnexpectedUndoException(e.getMessage());
+    }
+  }
+
+  private static @NotNull String getNameKey(@NotNull VirtualFile f, @NotNull String name) {
+    VirtualFile dir = f.getParent();
+    return dir == null || dir.isCaseSensitive() ? name : StringUtil.toLowerCase(name);
+  }
+
+  /**
+   * Returns the path if it doesn't exist, otherwise a path with a number appended to the name, e.g. "name (1).txt"
+   */
+  private static @NotNull Path getUniquePath(@NotNull Path path) {
+    String name = path.getFileName().toString();
+    String extension = FileUtilRt.getExtension(name);
+    String nameWithoutExtension = extension.isEmpty() ? name : FileUtilRt.getNameWithoutExtension(name);
+    Path result = path;
+    for (int i = 1; Files.exists(result, LinkOption.NOFOLLOW_LINKS); i++) {
+      result = path.resolveSibling(nameWithoutExtension + " (" + i + ")" + (extension.isEmpty() ? "" : "." + extension));
+    }
+    return result;
+  }
+
+  /**
+   * Runs an operation for each of the files, refreshes parents of the files and the target directory
+   * once all files are processed
+   */
+  private abstract static class BatchTask extends Task.Backgroundable {
+    private final String myVerb;
+    private final List<VirtualFile> myFiles;
+    private final Set<VirtualFile> myChangedDirs = new LinkedHashSet<>();
+    private final Queue<String> myFailures = new ConcurrentLinkedQueue<>();
+    final AtomicInteger myProcessed = new AtomicInteger();
+    private ProgressIndicator myIndicator;
+
+    BatchTask(@NotNull Project project,
+              @NotNull String title,
+              @NotNull String verb,
+              @NotNull List<VirtualFile> files,
+              @Nullable VirtualFile targetDir) {
+      super(project, title, true);
+      myVerb = verb;
+      myFiles = files;
+      for (VirtualFile f : files) {
+        if (f.getParent() != null) {
+          myChangedDirs.add(f.getParent());
+        }
+      }
+      if (targetDir != null) {
+        myChangedDirs.add(targetDir);
+      }
+    }
+
+    protected abstract @NotNull Future<Boolean> start(@NotNull Path path);
+
+    boolean isCancelled() {
+      return myIndicator.isCanceled();
+    }
+
+    void fail(@NotNull Path path, @NotNull Exception e) {
+      LOG.debug("Cannot " + myVerb + " " + path, e);
+      fail(path, e instanceof NoSuchFileException ? "no such file" :
+                 e instanceof DirectoryNotEmptyException ? "directory not empty" :
+                 e instanceof AccessDeniedException ? "access denied" :
+                 e instanceof FileAlreadyExistsException ? "already exists" :
+                 StringUtil.notNullize(e.getMessage(), e.getClass().getSimpleName()));
+    }
+
+    void fail(@NotNull Path path, @NotNull String reason) {
+      myFailures.add(FileUtil.toSystemIndependentName(path.toString()) + ": " + reason);
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+      myIndicator = indicator;
+      indicator.setIndeterminate(false);
+      List<Future<Boolean>> tasks = new ArrayList<>();
+      for (VirtualFile f : myFiles) {
+        if (f.isInLocalFileSystem()) {
+          tasks.add(start(f.toNioPath()));
+        } else {
+          myFailures.add(f.getPath() + ": not a local file");
+        }
+      }
+      // a single tree gives no fraction, only the number of processed files
+      indicator.setIndeterminate(tasks.size() == 1);
+      for (int i = 0; i < tasks.size(); i++) {
+        indicator.setFraction((double) i / tasks.size());
+        while (true) {
+          updateProcessed(indicator);
+          try {
+            tasks.get(i).get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            break;
+          } catch (TimeoutException e) {
+            // still running, update the progress
+          } catch (CancellationException | InterruptedException e) {
+            return;
+          } catch (ExecutionException e) {
+            LOG.warn(e);
+            break;
+          }
+        }
+      }
+    }
+
+    private void updateProcessed(@NotNull ProgressIndicator indicator) {
+      int processed = myProcessed.get();
+      indicator.setText2(processed + " " + StringUtil.pluralize("file", processed) + " processed");
+    }
+
+    @Override
+    public void onFinished() {
+      VfsUtil.markDirtyAndRefresh(true, false, true, myChangedDirs.toArray(VirtualFile.EMPTY_ARRAY));
+      if (!myFailures.isEmpty()) {
+        List<String> failures = new ArrayList<>(myFailures);
+        StringBuilder message = new StringBuilder();
+        message.append("Failed to ").append(myVerb).append(" ").append(failures.size()).append(" ")
+          .append(StringUtil.pluralize("file", failures.size())).append(":\n");
+        for (String failure : failures.subList(0, Math.min(failures.size(), MAX_REPORTED_FAILURES))) {
+          message.append(failure).append("\n");
+        }
+        if (failures.size() > MAX_REPORTED_FAILURES) {
+          message.append("and ").append(failures.size() - MAX_REPORTED_FAILURES).append(" more");
+        }
+        Messages.showErrorDialog(getProject(), message.toString().trim(), CommonBundle.getErrorTitle());
+      }
+    }
+  }
+
+  /**
+   * Deletes a file or a directory tree, returns false if anything in the tree was not deleted
+   */
+  private static class DeleteTask extends RecursiveTask<Boolean> {
+    private final Path myPath;
+    private final BatchTask myBatch;
+
+    DeleteTask(@NotNull Path path, @NotNull BatchTask batch) {
+      myPath = path;
+      myBatch = batch;
+    }
+
+    @Override
+    protected Boolean compute() {
+      if (myBatch.isCancelled()) {
+        return false;
+      }
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(myPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attributes.isDirectory()) {
+          List<DeleteTask> subTasks = new ArrayList<>();
+          try (DirectoryStream<Path> stream = Files.newDirectoryStream(myPath)) {
+            for (Path child : stream) {
+              DeleteTask subTask = new DeleteTask(child, myBatch);
+              subTask.fork();
+              subTasks.add(subTask);
+            }
+          }
+          boolean deleted = true;
+          for (DeleteTask subTask : subTasks) {
+            deleted &= subTask.join();
+          }
+          if (!deleted) {
+            // failures are already reported for the children
+            return false;
+          }
+        }
+        Files.delete(myPath);
+        myBatch.myProcessed.incrementAndGet();
+        return true;
+      } catch (IOException e) {
+        myBatch.fail(myPath, e);
+        return false;
+      } catch (DirectoryIteratorException e) {
+        myBatch.fail(myPath, e.getCause());
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Copies or moves a file or a directory tree to the destination, returns false if anything in the tree failed.
+   * Existing directories are merged, existing files are skipped or overwritten according to the policy.
+   */
+  private static class TransferTask extends RecursiveTask<Boolean> {
+    private final Path mySource;
+    private final Path myDest;
+    private final ConflictPolicy myPolicy;
+    private final boolean myMove;
+    private final BatchTask myBatch;
+
+    TransferTask(@NotNull Path source, @NotNull Path dest, @NotNull ConflictPolicy policy, boolean move, @NotNull BatchTask batch) {
+      mySource = source;
+      myDest = dest;
+      myPolicy = policy;
+      myMove = move;
+      myBatch = batch;
+    }
+
+    @Override
+    protected Boolean compute() {
+      if (myBatch.isCancelled()) {
+        return false;
+      }
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(mySource, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        boolean destExists = Files.exists(myDest, LinkOption.NOFOLLOW_LINKS);
+        if (destExists && attributes.isDirectory() != Files.isDirectory(myDest, LinkOption.NOFOLLOW_LINKS)) {
+          throw new FileAlreadyExistsException(myDest.toString());
+        }
+        if (destExists && !attributes.isDirectory() && myPolicy == ConflictPolicy.SKIP) {
+          return true;
+        }
+        // merging into an existing directory needs a per-file transfer
+        if (myMove && !(destExists && attributes.isDirectory()) && rename(mySource, myDest)) {
+          myBatch.myProcessed.incrementAndGet();
+          return true;
+        }
+        if (attributes.isDirectory()) {
+          return transferDir(attributes);
+        }
+        if (!copyFile(attributes)) {
+          return false;
+        }
+        if (myMove) {
+          Files.delete(mySource);
+        }
+        myBatch.myProcessed.incrementAndGet();
+        return true;
+      } catch (IOException e) {
+        myBatch.fail(mySource, e);
+        return false;
+      } catch (DirectoryIteratorException e) {
+        myBatch.fail(mySource, e.getCause());
+        return false;
+      }
+    }
+
+    private boolean transferDir(@NotNull BasicFileAttributes attributes) throws IOException {
+      if (!Files.exists(myDest, LinkOption.NOFOLLOW_LINKS)) {
+        Files.createDirectory(myDest);
+      }
+      List<TransferTask> subTasks = new ArrayList<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(mySource)) {
+        for (Path child : stream) {
+          TransferTask subTask = new TransferTask(child, myDest.resolve(child.getFileName().toString()), myPolicy, myMove, myBatch);
+          subTask.fork();
+          subTasks.add(subTask);
+        }
+      }
+      boolean transferred = true;
+      for (TransferTask subTask : subTasks) {
+        transferred &= subTask.join();
+      }
+      if (!transferred) {
+        // failures are already reported for the children
+        return false;
+      }
+      Files.setLastModifiedTime(myDest, attributes.lastModifiedTime());
+      if (myMove) {
+        Files.delete(mySource);
+      }
+      myBatch.myProcessed.incrementAndGet();
+      return true;
+    }
+
+    /**
+     * Copies the file contents with {@link FileChannel#transferTo}, returns false and removes the partial copy if cancelled
+     */
+    private boolean copyFile(@NotNull BasicFileAttributes attributes) throws IOException {
+      if (attributes.isSymbolicLink()) {
+        Files.deleteIfExists(myDest);
+        Files.createSymbolicLink(myDest, Files.readSymbolicLink(mySource));
+        return true;
+      }
+      try (FileChannel in = FileChannel.open(mySource, StandardOpenOption.READ);
+           FileChannel out = FileChannel.open(myDest, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        long size = in.size();
+        for (long position = 0; position < size; ) {
+          if (myBatch.isCancelled()) {
+            out.close();
+            Files.deleteIfExists(myDest);
+            return false;
+          }
+          position += in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+        }
+      }
+      Files.setLastModifiedTime(myDest, attributes.lastModifiedTime());
+      return true;
+    }
+
+    /**
+     * Renames the file atomically, returns false if the destination is on another file store
+     */
+    private static boolean rename(@NotNull Path source, @NotNull Path dest) throws IOException {
+      try {
+        Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+      } catch (AtomicMoveNotSupportedException e) {
+        return false;
+      }
+    }
+  }
+}
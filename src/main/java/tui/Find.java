@@ -0,0 +1,260 @@
+package tui;
+
+import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.actionSystem.TypedActionHandler;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.ide.CopyPasteManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.ObjectUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.datatransfer.StringSelection;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Buffer with results of a recursive search of files by name. Directory tree is walked
+ * in parallel and matches are streamed to the buffer while the search runs.
+ */
+public class Find implements TypedActionHandler {
+  private static final Logger LOG = Logger.getInstance(Find.class);
+  private static final Key<Path> ROOT = Key.create("tui.find.root");
+  private static final Key<String> PATTERN = Key.create("tui.find.pattern");
+  private static final Key<List<Path>> RESULTS = Key.create("tui.find.results");
+  private static final Key<ProgressIndicator> SEARCH = Key.create("tui.find.search");
+  private static final Map<String, TypedActionHandler> DEFAULT_KEY_MAP = new HashMap<>() {{
+    put("\n", Find::openFileUnderCaret);
+    put("j", Dir::down);
+    put("k", Dir::up);
+    put("g", Find::refresh);
+    put("p", Find::copyPathUnderCaret);
+  }};
+
+  public static void open(@NotNull Project project, @NotNull Path root, @NotNull String pattern) {
+    TuiFile file = TuiFS.getInstance().createFile(project, "", Dir.DirFileType.INSTANCE);
+    file.setWritable(false);
+    file.setPresentableName("find " + pattern);
+    file.putUserData(ROOT, root);
+    file.putUserData(PATTERN, pattern);
+    TuiService.getInstance().setTui(file, true);
+    Tui.setTypingHandler(file, new Find());
+    FileEditorManager.getInstance(project).openFile(file, true);
+    search(project, file);
+  }
+
+  @Override
+  public void execute(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    if (file == null) {
+      return;
+    }
+    Map<String, TypedActionHandler> keymap = Tui.TUI_KEYMAP.get(file, DEFAULT_KEY_MAP);
+    TypedActionHandler handler = keymap != null ? keymap.get(String.valueOf(charTyped)) : null;
+    if (handler != null) {
+      handler.execute(editor, charTyped, dataContext);
+    }
+  }
+
+  private static void search(@NotNull Project project, @NotNull TuiFile file) {
+    ProgressIndicator previousSearch = file.getUserData(SEARCH);
+    if (previousSearch != null) {
+      previousSearch.cancel();
+    }
+    Path root = file.getUserData(ROOT);
+    String pattern = file.getUserData(PATTERN);
+    if (root == null || pattern == null) {
+      return;
+    }
+    Tui.update(file, null, tui -> tui.text.append(getHeader(root, pattern, "searching...")).append("\n"));
+
+    SearchTask task = new SearchTask(project, file, root, pattern);
+    ProgressIndicator indicator = new BackgroundableProcessIndicator(task);
+    file.putUserData(SEARCH, indicator);
+    task.start(indicator);
+  }
+
+  static @NotNull PathMatcher createMatcher(@NotNull String pattern) {
+    boolean isGlob = StringUtil.containsAnyChar(pattern, "*?[{");
+    return FileSystems.getDefault().getPathMatcher("glob:" + (isGlob ? pattern : "*" + pattern + "*"));
+  }
+
+  private static @NotNull String getHeader(@NotNull Path root, @NotNull String pattern, @NotNull String status) {
+    return FileUtil.toSystemIndependentName(root.toString()) + ": " + pattern + " (" + status + ")";
+  }
+
+  /**
+   * Marks the directory as visited, returns false if it was already visited via another path (symlink)
+   */
+  private static boolean markVisited(@NotNull Path dir, @NotNull Set<Object> visited) {
+    try {
+      Object key = Files.readAttributes(dir, BasicFileAttributes.class).fileKey();
+      return visited.add(key != null ? key : dir.toRealPath());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static @Nullable Path getPathUnderCaret(@NotNull Editor editor) {
+    List<Path> results = editor.getVirtualFile() != null ? editor.getVirtualFile().getUserData(RESULTS) : null;
+    int idx = editor.getDocument().getLineNumber(editor.getCaretModel().getOffset()) - 1;
+    if (results != null && 0 <= idx && idx < results.size()) {
+      return results.get(idx);
+    }
+    return null;
+  }
+
+  public static void openFileUnderCaret(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    Project project = editor.getProject();
+    Path path = getPathUnderCaret(editor);
+    if (project == null || path == null) {
+      return;
+    }
+    VirtualFile f = LocalFileSystem.getInstance().refreshAndFindFileByNioFile(path);
+    if (f == null) {
+      return;
+    }
+    if (f.isDirectory()) {
+      Dir.openAsText(project, f, null);
+    } else {
+      FileEditorManager.getInstance(project).openFile(f, true);
+    }
+  }
+
+  public static void copyPathUnderCaret(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    Path path = getPathUnderCaret(editor);
+    if (path != null) {
+      CopyPasteManager.getInstance().setContents(new StringSelection(FileUtil.toSystemIndependentName(path.toString())));
+    }
+  }
+
+  public static void refresh(@NotNull Editor editor, char charTyped, @NotNull DataContext dataContext) {
+    TuiFile file = ObjectUtils.tryCast(editor.getVirtualFile(), TuiFile.class);
+    Project project = editor.getProject();
+    if (file != null && project != null) {
+      search(project, file);
+    }
+  }
+
+  private static class SearchTask extends Task.Backgroundable {
+    private final TuiFile myFile;
+    private final Path myRoot;
+    private final String myPattern;
+    private final PathMatcher myMatcher;
+    private final Set<Object> myVisited = ConcurrentHashMap.newKeySet();
+    private final List<Path> myResults = new ArrayList<>();
+    private ProgressIndicator myIndicator;
+    private TuiStream myStream;
+
+    SearchTask(@NotNull Project project, @NotNull TuiFile file, @NotNull Path root, @NotNull String pattern) {
+      super(project, "Searching for " + pattern, true);
+      myFile = file;
+      myRoot = root;
+      myPattern = pattern;
+      myMatcher = createMatcher(pattern);
+    }
+
+    void start(@NotNull ProgressIndicator indicator) {
+      myIndicator = indicator;
+      myStream = Tui.stream(myFile, null);
+      myFile.putUserData(RESULTS, myResults);
+      ProgressManager.getInstance().runProcessWithProgressAsynchronously(this, indicator);
+    }
+
+    private boolean isCancelled() {
+      return myIndicator.isCanceled() || myStream.isCancelled();
+    }
+
+    @Override
+    public void run(@NotNull ProgressIndicator indicator) {
+      markVisited(myRoot, myVisited);
+      TuiService.getInstance().getPool().invoke(new WalkTask(myRoot, this));
+    }
+
+    @Override
+    public void onFinished() {
+      if (myFile.getUserData(SEARCH) != myIndicator) {
+        return;
+      }
+      if (isCancelled()) {
+        myStream.cancel();
+        setStatus("cancelled");
+      } else {
+        myStream.finish(() -> setStatus(myResults.size() + " " + StringUtil.pluralize("match", myResults.size())));
+      }
+    }
+
+    private void setStatus(@NotNull String status) {
+      Tui.modifyDocument(myFile, doc -> doc.replaceString(0, doc.getLineEndOffset(0), getHeader(myRoot, myPattern, status)));
+    }
+  }
+
+  private static class WalkTask extends RecursiveAction {
+    private final Path myDir;
+    private final SearchTask mySearch;
+
+    WalkTask(@NotNull Path dir, @NotNull SearchTask search) {
+      myDir = dir;
+      mySearch = search;
+    }
+
+    @Override
+    protected void compute() {
+      if (mySearch.isCancelled()) {
+        return;
+      }
+      FileTypeManager fileTypeManager = FileTypeManager.getInstance();
+      List<WalkTask> subTasks = new ArrayList<>();
+      List<Path> matches = new ArrayList<>();
+      TuiStream.Chunk chunk = new TuiStream.Chunk();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(myDir)) {
+        for (Path child : stream) {
+          Path name = child.getFileName();
+          if (fileTypeManager.isFileIgnored(name.toString())) {
+            continue;
+          }
+          boolean isDirectory = Files.isDirectory(child);
+          if (mySearch.myMatcher.matches(name)) {
+            matches.add(child);
+            String relativePath = FileUtil.toSystemIndependentName(mySearch.myRoot.relativize(child).toString());
+            if (isDirectory) {
+              chunk.text.append("[").append(relativePath).append("]\n");
+            } else {
+              chunk.text.append(relativePath).append("\n");
+            }
+          }
+          if (isDirectory && markVisited(child, mySearch.myVisited)) {
+            WalkTask subTask = new WalkTask(child, mySearch);
+            subTask.fork();
+            subTasks.add(subTask);
+          }
+        }
+      } catch (IOException | DirectoryIteratorException e) {
+        LOG.debug("Cannot list " + myDir, e);
+      }
+      if (!matches.isEmpty()) {
+        chunk.onAppend = () -> mySearch.myResults.addAll(matches);
+        mySearch.myStream.push(chunk);
+      }
+      for (WalkTask subTask : subTasks) {
+        subTask.join();
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package tui;
+
+import com.intellij.openapi.util.text.StringUtil;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Trigram index of lower-case names for substring search. Each trigram maps to the ascending
+ * indices of names containing it, a query intersects the lists of its trigrams and checks the
+ * remaining candidates. Queries shorter than a trigram scan all names.
+ */
+final class NameIndex {
+  private static final int N = 3;
+
+  private final String[] myNames;
+  private final Long2ObjectMap<int[]> myPostings;
+
+  /**
+   * @param names lower-case names
+   */
+  NameIndex(String @NotNull [] names) {
+    myNames = names;
+    Long2ObjectOpenHashMap<IntArrayList> postings = new Long2ObjectOpenHashMap<>();
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i];
+      for (int j = 0; j + N <= name.length(); j++) {
+        IntArrayList list = postings.computeIfAbsent(getTrigram(name, j), k -> new IntArrayList(4));
+        // a name can contain a trigram several times
+        if (list.isEmpty() || list.getInt(list.size() - 1) != i) {
+          list.add(i);
+        }
+      }
+    }
+    myPostings = new Long2ObjectOpenHashMap<>(postings.size());
+    for (Long2ObjectMap.Entry<IntArrayList> entry : postings.long2ObjectEntrySet()) {
+      myPostings.put(entry.getLongKey(), entry.getValue().toIntArray());
+    }
+  }
+
+  /**
+   * Returns ascending indices of names containing the query ignoring case
+   */
+  int @NotNull [] find(@NotNull String query) {
+    String key = StringUtil.toLowerCase(query);
+    IntArrayList result = new IntArrayList();
+    if (key.length() < N) {
+      for (int i = 0; i < myNames.length; i++) {
+        if (myNames[i].contains(key)) {
+          result.add(i);
+        }
+      }
+      return result.toIntArray();
+    }
+    List<int[]> lists = new ArrayList<>();
+    for (int j = 0; j + N <= key.length(); j++) {
+      int[] list = myPostings.get(getTrigram(key, j));
+      if (list == null) {
+        return new int[0];
+      }
+      lists.add(list);
+    }
+    lists.sort(Comparator.comparingInt(list -> list.length));
+    int[] candidates = lists.get(0);
+    for (int k = 1; k < lists.size() && candidates.length > 0; k++) {
+      candidates = intersect(candidates, lists.get(k));
+    }
+    for (int i : candidates) {
+      // trigrams may match in a different order, e.g. "abcab" for "cabc"
+      if (myNames[i].contains(key)) {
+        result.add(i);
+      }
+    }
+    return result.toIntArray();
+  }
+
+  private static int @NotNull [] intersect(int @NotNull [] a, int @NotNull [] b) {
+    IntArrayList result = new IntArrayList(Math.min(a.length, b.length));
+    for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result.add(a[i]);
+        i++;
+        j++;
+      }
+    }
+    return result.toIntArray();
+  }
+
+  private static long getTrigram(@NotNull String s, int start) {
+    return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16) | s.charAt(start + 2);
+  }
+}
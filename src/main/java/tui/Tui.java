@@ -1,12 +1,17 @@
 package tui;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.ScrollType;
 import com.intellij.openapi.editor.actionSystem.TypedActionHandler;
 import com.intellij.openapi.editor.markup.HighlighterLayer;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
+import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditor;
@@ -17,17 +22,19 @@ import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.UserDataHolder;
 import com.intellij.openapi.util.UserDataHolderBase;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Consumer;
 
 public class Tui {
   public static final Key<Map<String, TypedActionHandler>> TUI_KEYMAP = Key.create("tui.keymap");
   private static final Key<TypedActionHandler> TUI_TYPING_HANDLER = Key.create("tui.typingHandler");
   private static final Key<UserDataHolder> TUI_DATA = Key.create("tui.data");
+  private static final Key<Set<RangeHighlighter>> TUI_HIGHLIGHTERS = Key.create("tui.highlighters");
+  private static final Key<Boolean> TUI_EDITING = Key.create("tui.editing");
 
   public final StringBuilder text = new StringBuilder();
   public final UserDataHolder data;
@@ -35,79 +42,291 @@ public class Tui {
   public Integer caretOffset;
   public ScrollType scrollToCaretType;
   public String name;
-  public java.util.List<Highlighter> highlighters = new ArrayList<>();
+  public List<Highlighter> highlighters = new ArrayList<>();
 
   public Tui(@NotNull UserDataHolder data) {
     this.data = data;
   }
 
-  static @Nullable Tui open(@NotNull TuiFile file, @NotNull Project project, @NotNull Consumer<Tui> task) {
-    Tui tui = Tui.update(file, null, task);
+  static void open(@NotNull TuiFile file, @NotNull Project project, @NotNull Consumer<Tui> task) {
     FileEditor[] editors = FileEditorManager.getInstance(project).openFile(file, true);
-    if (tui != null && tui.caretOffset != null) {
-      for (FileEditor editor : editors) {
-        if (editor instanceof TextEditor) {
-          ((TextEditor) editor).getEditor().getCaretModel().moveToOffset(tui.caretOffset);
-          ScrollType scrollType = tui.scrollToCaretType;
-          if (scrollType != null) {
-            ((TextEditor) editor).getEditor().getScrollingModel().scrollToCaret(scrollType);
-          }
-        }
+    Editor editor = null;
+    for (FileEditor fileEditor : editors) {
+      if (fileEditor instanceof TextEditor) {
+        editor = ((TextEditor) fileEditor).getEditor();
+        break;
       }
     }
-    return tui;
+    updateAsync(file, editor, task);
   }
 
+  /**
+   * Renders and applies the task synchronously. Any render still running in background
+   * for this file is discarded.
+   */
   static @Nullable Tui update(@NotNull TuiFile file, @Nullable Editor editor, @NotNull Consumer<Tui> task) {
     if (!TuiService.getInstance().isTui(file)) {
       return null;
     }
+    int stamp = file.nextRenderStamp();
+    Tui tui = render(file, task);
+    return apply(file, editor, tui, stamp) ? tui : null;
+  }
+
+  /**
+   * Runs the task in a cancellable background read action and applies the result on EDT.
+   * A newer update of the same file cancels the task, its result is never applied.
+   */
+  static void updateAsync(@NotNull TuiFile file, @Nullable Editor editor, @NotNull Consumer<Tui> task) {
+    if (!TuiService.getInstance().isTui(file)) {
+      return;
+    }
+    int stamp = file.nextRenderStamp();
+    file.setPendingRender(stamp, () -> updateAsync(file, editor, task));
+    ReadAction.nonBlocking(() -> render(file, task))
+            .coalesceBy(Tui.class, file)
+            .expireWhen(() -> !file.isLatestRenderStamp(stamp) || !file.isValid() || editor != null && editor.isDisposed())
+            .finishOnUiThread(ModalityState.defaultModalityState(), tui -> apply(file, editor, tui, stamp))
+            .submit(AppExecutorUtil.getAppExecutorService());
+  }
+
+  /**
+   * Starts the background render of the file anew if one is still running, so that it sees changes made to
+   * the render data after it started. Does nothing if the latest render is already applied.
+   */
+  static void restartPendingUpdate(@NotNull TuiFile file) {
+    Runnable restart = file.getPendingRender();
+    if (restart != null) {
+      restart.run();
+    }
+  }
+
+  private static @NotNull Tui render(@NotNull TuiFile file, @NotNull Consumer<Tui> task) {
+    long start = System.nanoTime();
+    Tui tui = new Tui(Tui.getTuiData(file));
+    task.accept(tui);
+    TuiService.getInstance().getStats().record(TuiStats.Phase.RENDER, start);
+    return tui;
+  }
+
+  private static boolean apply(@NotNull TuiFile file, @Nullable Editor editor, @NotNull Tui tui, int stamp) {
+    if (!file.isLatestRenderStamp(stamp)) {
+      return false;
+    }
+    file.setPendingRender(stamp, null);
+    TuiStats stats = TuiService.getInstance().getStats();
+    boolean modified = modifyDocument(file, doc -> {
+      long start = System.nanoTime();
+      replaceChangedLines(doc, tui.text);
+      stats.record(TuiStats.Phase.DOCUMENT, start);
+      if (tui.name != null) {
+        file.setPresentableName(tui.name);
+      }
+      if (editor != null) {
+        long markupStart = System.nanoTime();
+        updateHighlighters(editor, tui.highlighters);
+        stats.record(TuiStats.Phase.MARKUP, markupStart);
+        if (tui.caretOffset != null) {
+          editor.getCaretModel().moveToOffset(tui.caretOffset);
+        }
+        ScrollType scrollType = tui.scrollToCaretType;
+        if (scrollType != null) {
+          editor.getScrollingModel().scrollToCaret(scrollType);
+        }
+      }
+    });
+    if (modified) {
+      Tui.setTuiData(file, tui.newData);
+    }
+    return modified;
+  }
+
+  /**
+   * Drops render data of a file which is not shown anymore: renders in progress are discarded,
+   * the stream is cancelled. The next render of the file starts from scratch.
+   */
+  static void release(@NotNull TuiFile file) {
+    file.nextRenderStamp();
+    TuiStream stream = file.setStream(null);
+    if (stream != null) {
+      stream.cancel();
+    }
+    file.putUserData(TUI_DATA, null);
+  }
+
+  /**
+   * Starts streaming appends to the end of the file, a previous stream of the file is cancelled.
+   * Use it to show results of long-running producers as they come.
+   */
+  static @NotNull TuiStream stream(@NotNull TuiFile file, @Nullable Editor editor) {
+    TuiStream stream = new TuiStream(file, editor);
+    TuiStream previous = file.setStream(stream);
+    if (previous != null) {
+      previous.cancel();
+    }
+    return stream;
+  }
+
+  /**
+   * Runs the modification of the read-only Tui document in a write action
+   */
+  static boolean modifyDocument(@NotNull TuiFile file, @NotNull Consumer<Document> modification) {
     Document doc = FileDocumentManager.getInstance().getDocument(file);
     if (doc == null) {
-      return null;
+      return false;
     }
-
     boolean origFileWritable = file.isWritable();
     boolean origDocWritable = doc.isWritable();
     file.setWritable(true);
     try {
       doc.setReadOnly(false);
-      UserDataHolder data = Tui.getTuiData(file);
-      Tui tui = new Tui(data);
+      ApplicationManager.getApplication().runWriteAction(() -> modification.accept(doc));
+      return true;
+    } finally {
+      doc.setReadOnly(!origDocWritable);
+      file.setWritable(origFileWritable);
+    }
+  }
 
-      task.accept(tui);
+  /**
+   * Replaces only the lines which differ between the document and the new text,
+   * so that small changes in a big listing don't reset the whole document.
+   */
+  static void replaceChangedLines(@NotNull Document doc, @NotNull CharSequence newText) {
+    CharSequence oldText = doc.getImmutableCharSequence();
+    int oldLength = oldText.length();
+    int newLength = newText.length();
+    int minLength = Math.min(oldLength, newLength);
+    int prefix = 0;
+    while (prefix < minLength && oldText.charAt(prefix) == newText.charAt(prefix)) {
+      prefix++;
+    }
+    if (prefix == oldLength && prefix == newLength) {
+      return;
+    }
+    while (prefix > 0 && oldText.charAt(prefix - 1) != '\n') {
+      prefix--;
+    }
+    int suffix = 0;
+    while (suffix < minLength - prefix && oldText.charAt(oldLength - suffix - 1) == newText.charAt(newLength - suffix - 1)) {
+      suffix++;
+    }
+    while (suffix > 0 && suffix < oldLength && oldText.charAt(oldLength - suffix - 1) != '\n') {
+      suffix--;
+    }
+    doc.replaceString(prefix, oldLength - suffix, newText.subSequence(prefix, newLength - suffix));
+  }
 
-      ApplicationManager.getApplication().runWriteAction(() -> {
-        doc.setText(tui.text);
-        if (tui.name != null) {
-          file.setPresentableName(tui.name);
+  /**
+   * Keeps highlighters which are already in the editor with the same range and attributes,
+   * removes the ones which are not in the new list and adds the missing ones.
+   */
+  static void updateHighlighters(@NotNull Editor editor, @NotNull List<Highlighter> highlighters) {
+    MarkupModel markupModel = editor.getMarkupModel();
+    Map<Highlighter, RangeHighlighter> existing = new HashMap<>();
+    Set<RangeHighlighter> oldHighlighters = editor.getUserData(TUI_HIGHLIGHTERS);
+    if (oldHighlighters != null) {
+      for (RangeHighlighter rh : oldHighlighters) {
+        if (!rh.isValid()) {
+          continue;
         }
-        if (editor != null) {
-          editor.getMarkupModel().removeAllHighlighters();
-          for (Highlighter h : tui.highlighters) {
-            if (h.attributes != null) {
-              editor.getMarkupModel().addRangeHighlighter(
-                      h.startOffset, h.endOffset, h.layer, h.attributes, HighlighterTargetArea.EXACT_RANGE);
-            }
-          }
-          if (tui.caretOffset != null) {
-            editor.getCaretModel().moveToOffset(tui.caretOffset);
-          }
-          ScrollType scrollType = tui.scrollToCaretType;
-          if (scrollType != null) {
-            editor.getScrollingModel().scrollToCaret(scrollType);
-          }
+        Highlighter key = new Highlighter();
+        key.startOffset = rh.getStartOffset();
+        key.endOffset = rh.getEndOffset();
+        key.layer = rh.getLayer();
+        key.attributes = rh.getTextAttributes(editor.getColorsScheme());
+        RangeHighlighter duplicate = existing.put(key, rh);
+        if (duplicate != null) {
+          markupModel.removeHighlighter(duplicate);
+        }
+      }
+    }
+    Set<RangeHighlighter> newHighlighters = new HashSet<>(highlighters.size());
+    for (Highlighter h : highlighters) {
+      if (h.attributes == null) {
+        continue;
+      }
+      RangeHighlighter rh = existing.remove(h);
+      if (rh == null) {
+        rh = markupModel.addRangeHighlighter(h.startOffset, h.endOffset, h.layer, h.attributes, HighlighterTargetArea.EXACT_RANGE);
+      }
+      newHighlighters.add(rh);
+    }
+    for (RangeHighlighter rh : existing.values()) {
+      markupModel.removeHighlighter(rh);
+    }
+    editor.putUserData(TUI_HIGHLIGHTERS, newHighlighters);
+  }
+
+  /**
+   * Adds highlighters to the editor in addition to the existing ones
+   */
+  static void addHighlighters(@NotNull Editor editor, @NotNull List<Highlighter> highlighters) {
+    Set<RangeHighlighter> owned = getOwnedHighlighters(editor);
+    for (Highlighter h : highlighters) {
+      if (h.attributes != null) {
+        owned.add(editor.getMarkupModel().addRangeHighlighter(h.startOffset, h.endOffset, h.layer, h.attributes, HighlighterTargetArea.EXACT_RANGE));
+      }
+    }
+  }
+
+  /**
+   * Shows or hides the highlighters without touching other highlighters of the editor
+   */
+  static void setHighlighters(@NotNull Editor editor, @NotNull List<Highlighter> highlighters, boolean show) {
+    Set<RangeHighlighter> owned = getOwnedHighlighters(editor);
+    MarkupModelEx markupModel = (MarkupModelEx) editor.getMarkupModel();
+    List<Highlighter> toAdd = new ArrayList<>();
+    for (Highlighter h : highlighters) {
+      List<RangeHighlighter> found = new ArrayList<>(1);
+      markupModel.processRangeHighlightersOverlappingWith(h.startOffset, h.endOffset, rh -> {
+        if (owned.contains(rh) &&
+            rh.getStartOffset() == h.startOffset &&
+            rh.getEndOffset() == h.endOffset &&
+            rh.getLayer() == h.layer &&
+            Objects.equals(rh.getTextAttributes(editor.getColorsScheme()), h.attributes)) {
+          found.add(rh);
         }
+        return true;
       });
+      if (show && found.isEmpty()) {
+        toAdd.add(h);
+      } else if (!show) {
+        for (RangeHighlighter rh : found) {
+          owned.remove(rh);
+          markupModel.removeHighlighter(rh);
+        }
+      }
+    }
+    addHighlighters(editor, toAdd);
+  }
 
-      Tui.setTuiData(file, tui.newData);
-      return tui;
-    } finally {
-      doc.setReadOnly(!origDocWritable);
-      file.setWritable(origFileWritable);
+  private static @NotNull Set<RangeHighlighter> getOwnedHighlighters(@NotNull Editor editor) {
+    Set<RangeHighlighter> result = editor.getUserData(TUI_HIGHLIGHTERS);
+    if (result == null) {
+      result = new HashSet<>();
+      editor.putUserData(TUI_HIGHLIGHTERS, result);
+    }
+    return result;
+  }
+
+  /**
+   * In editing mode the Tui document is writable and typed characters are handled by the editor,
+   * only Enter and Escape are passed to the Tui typing handler.
+   */
+  static void setEditing(@NotNull TuiFile file, boolean editing) {
+    file.putUserData(TUI_EDITING, editing ? Boolean.TRUE : null);
+    file.setWritable(editing);
+    Document doc = FileDocumentManager.getInstance().getDocument(file);
+    if (doc != null) {
+      doc.setReadOnly(!editing);
     }
   }
 
+  static boolean isEditing(@Nullable VirtualFile file) {
+    return file != null && file.getUserData(TUI_EDITING) == Boolean.TRUE;
+  }
+
   public static @Nullable TypedActionHandler getTypingHandler(@Nullable UserDataHolder o) {
     return o != null ? o.getUserData(TUI_TYPING_HANDLER) : null;
   }
@@ -130,5 +349,21 @@ public class Tui {
     int endOffset;
     int layer = HighlighterLayer.SYNTAX; // HighlighterLayer
     TextAttributes attributes;
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Highlighter that = (Highlighter) o;
+      return startOffset == that.startOffset &&
+             endOffset == that.endOffset &&
+             layer == that.layer &&
+             Objects.equals(attributes, that.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(startOffset, endOffset, layer, attributes);
+    }
   }
 }
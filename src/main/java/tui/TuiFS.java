@@ -11,14 +11,28 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Registry of Tui files. Files shown in editors are kept strongly; closed files are released and kept
+ * softly, so that the switcher and reopen-closed-tab can still find them until memory gets low.
+ * At most {@link #MAX_CLOSED_FILES} closed files are kept.
+ */
 public class TuiFS extends DeprecatedVirtualFileSystem implements NonPhysicalFileSystem {
 
   private static final String PROTOCOL = "tui";
-  private final ConcurrentMap<String, VirtualFile> myFiles = new ConcurrentHashMap<String, VirtualFile>();
+  private static final int MAX_CLOSED_FILES = 50;
+  private final ConcurrentMap<String, TuiFile> myFiles = new ConcurrentHashMap<>();
+  // guarded by itself, in LRU order
+  private final Map<String, SoftReference<TuiFile>> myClosedFiles = new LinkedHashMap<>(16, 0.75f, true);
   private final AtomicLong myFileId = new AtomicLong(0);
 
   public static @NotNull TuiFS getInstance() {
@@ -35,6 +49,7 @@ public class TuiFS extends DeprecatedVirtualFileSystem implements NonPhysicalFil
     // creation timestamp.
     String id = TuiService.getInstance().getId() + "-" + myFileId.incrementAndGet();
     TuiFile result = new TuiFile(this, project, id, name, fileType);
+    myFiles.values().removeIf(f -> f.getProject().isDisposed());
     myFiles.put(id, result);
     return result;
   }
@@ -46,19 +61,81 @@ public class TuiFS extends DeprecatedVirtualFileSystem implements NonPhysicalFil
 
   @Override
   public @Nullable VirtualFile findFileByPath(@NotNull @NonNls String path) {
-    return myFiles.get(path);
+    TuiFile file = myFiles.get(path);
+    if (file != null) {
+      return file;
+    }
+    synchronized (myClosedFiles) {
+      SoftReference<TuiFile> ref = myClosedFiles.get(path);
+      file = ref != null ? ref.get() : null;
+      if (file == null || file.getProject().isDisposed()) {
+        myClosedFiles.remove(path);
+        return null;
+      }
+      return file;
+    }
   }
 
   @Override
   public @Nullable VirtualFile refreshAndFindFileByPath(@NotNull String path) {
-    return myFiles.get(path);
+    return findFileByPath(path);
   }
 
   @Override
   public void refresh(boolean asynchronous) {
   }
 
-  public void closeFile(@NotNull VirtualFile file) {
-    myFiles.remove(file.getPath());
+  /**
+   * Releases render data of a file which is not shown in any editor anymore and keeps the file softly
+   */
+  void closeFile(@NotNull TuiFile file) {
+    if (myFiles.remove(file.getPath()) == null) {
+      return;
+    }
+    Tui.release(file);
+    synchronized (myClosedFiles) {
+      myClosedFiles.put(file.getPath(), new SoftReference<>(file));
+      myClosedFiles.values().removeIf(ref -> ref.get() == null);
+      for (Iterator<SoftReference<TuiFile>> it = myClosedFiles.values().iterator(); myClosedFiles.size() > MAX_CLOSED_FILES; ) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Keeps the file strongly again, returns true if it was closed and its render data was released
+   */
+  boolean reopenFile(@NotNull TuiFile file) {
+    if (myFiles.putIfAbsent(file.getPath(), file) != null) {
+      return false;
+    }
+    synchronized (myClosedFiles) {
+      myClosedFiles.remove(file.getPath());
+    }
+    return true;
+  }
+
+  /**
+   * Returns files shown in editors
+   */
+  @NotNull List<TuiFile> getOpenFiles() {
+    return new ArrayList<>(myFiles.values());
+  }
+
+  /**
+   * Returns closed files which are not collected yet
+   */
+  @NotNull List<TuiFile> getClosedFiles() {
+    List<TuiFile> result = new ArrayList<>();
+    synchronized (myClosedFiles) {
+      for (SoftReference<TuiFile> ref : myClosedFiles.values()) {
+        TuiFile file = ref.get();
+        if (file != null) {
+          result.add(file);
+        }
+      }
+    }
+    return result;
   }
 }
@@ -3,10 +3,15 @@ package tui;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.NlsSafe;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.vfs.VirtualFilePathWrapper;
 import com.intellij.openapi.vfs.VirtualFileSystem;
 import com.intellij.testFramework.LightVirtualFile;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 class TuiFile extends LightVirtualFile implements VirtualFilePathWrapper /*just to show presentable name in switcher*/ {
 
@@ -14,6 +19,10 @@ class TuiFile extends LightVirtualFile implements VirtualFilePathWrapper /*just
   private final Project myProject;
   private final String myId;
   private String myPresentableName;
+  private final AtomicInteger myRenderStamp = new AtomicInteger();
+  private final AtomicReference<TuiStream> myStream = new AtomicReference<>();
+  // the stamp of the background render not applied yet and a runnable starting it anew
+  private volatile Pair<Integer, Runnable> myPendingRender;
 
   public TuiFile(@NotNull TuiFS fs, @NotNull Project project, @NotNull String id, @NotNull String name, @NotNull FileType fileType) {
     super(name, fileType, "");
@@ -68,6 +77,37 @@ class TuiFile extends LightVirtualFile implements VirtualFilePathWrapper /*just
     return true;
   }
 
+  int nextRenderStamp() {
+    return myRenderStamp.incrementAndGet();
+  }
+
+  boolean isLatestRenderStamp(int stamp) {
+    return myRenderStamp.get() == stamp;
+  }
+
+  void setPendingRender(int stamp, @Nullable Runnable restart) {
+    myPendingRender = restart != null ? Pair.create(stamp, restart) : null;
+  }
+
+  /**
+   * Returns a runnable starting the pending background render anew, null if the latest render is already applied
+   */
+  @Nullable Runnable getPendingRender() {
+    Pair<Integer, Runnable> pending = myPendingRender;
+    return pending != null && isLatestRenderStamp(pending.first) ? pending.second : null;
+  }
+
+  /**
+   * Sets the stream appending to this file, returns the previous stream
+   */
+  @Nullable TuiStream setStream(@Nullable TuiStream stream) {
+    return myStream.getAndSet(stream);
+  }
+
+  @Nullable TuiStream getStream() {
+    return myStream.get();
+  }
+
   @Override
   public boolean isValid() {
     return super.isValid() && TuiService.isLoaded();
@@ -12,17 +12,35 @@ import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.actionSystem.EditorActionHandler;
 import com.intellij.openapi.editor.actionSystem.EditorActionManager;
+import com.intellij.openapi.editor.actionSystem.TypedActionHandler;
+import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.fileEditor.TextEditor;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.roots.ProjectFileIndex;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.UserDataHolder;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.messages.MessageBusConnection;
+import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public final class TuiService {
@@ -30,12 +48,22 @@ public final class TuiService {
   private static final Key<Boolean> TUI_MARKER = Key.create("tui.tuiFileMark");
 
   private static final AtomicBoolean ourLoaded = new AtomicBoolean(false);
+  private static final int MAX_DIR_GENERATIONS = 4096;
 
   private final long myId;
+  private final MergingUpdateQueue myRefreshQueue;
+  private final DirWatcher myDirWatcher = new DirWatcher(this::scheduleDirRefresh);
+  private final AtomicLong myGeneration = new AtomicLong();
+  private final Map<String, Long> myDirGenerations = new ConcurrentHashMap<>();
+  private final ForkJoinPool myPool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+  private final TuiStats myStats = new TuiStats();
 
   public TuiService() {
     myId = System.currentTimeMillis();
     Disposable disposable = Disposer.newDisposable();
+    myRefreshQueue = new MergingUpdateQueue("tui.refresh", 300, true, null, disposable);
+    Disposer.register(disposable, myDirWatcher);
+    Disposer.register(disposable, myPool::shutdownNow);
     MessageBusConnection bus = ApplicationManager.getApplication().getMessageBus().connect(disposable);
     bus.subscribe(DynamicPluginListener.TOPIC, new DynamicPluginListener() {
       @Override
@@ -50,8 +78,11 @@ public final class TuiService {
       }
     });
     TuiTypingHandler.init();
-    EditorActionHandler orig = EditorActionManager.getInstance().getActionHandler(IdeActions.ACTION_EDITOR_ENTER);
-    EditorActionManager.getInstance().setActionHandler(IdeActions.ACTION_EDITOR_ENTER, new TuiEditorActionHandler(orig));
+    EditorActionManager actionManager = EditorActionManager.getInstance();
+    EditorActionHandler enter = actionManager.getActionHandler(IdeActions.ACTION_EDITOR_ENTER);
+    actionManager.setActionHandler(IdeActions.ACTION_EDITOR_ENTER, new TuiEditorActionHandler(enter, '\n', false));
+    EditorActionHandler escape = actionManager.getActionHandler(IdeActions.ACTION_EDITOR_ESCAPE);
+    actionManager.setActionHandler(IdeActions.ACTION_EDITOR_ESCAPE, new TuiEditorActionHandler(escape, '\u001b', true));
     ourLoaded.set(true);
   }
 
@@ -89,19 +120,150 @@ public final class TuiService {
     return myId;
   }
 
+  /**
+   * Schedules a refresh of the file, refreshes of the same file scheduled in a short period are merged
+   */
+  void scheduleRefresh(@NotNull TuiFile file, @NotNull Runnable refresh) {
+    myRefreshQueue.queue(Update.create(file, refresh));
+  }
+
+  /**
+   * Schedules a VFS refresh of a directory changed outside of the IDE, refreshes of the same directory
+   * scheduled in a short period are merged
+   */
+  private void scheduleDirRefresh(@NotNull VirtualFile dir) {
+    myRefreshQueue.queue(Update.create(dir, () -> VfsUtil.markDirtyAndRefresh(true, false, true, dir)));
+  }
+
+  /**
+   * Returns the pool for parallel file system walks
+   */
+  @NotNull ForkJoinPool getPool() {
+    return myPool;
+  }
+
+  @NotNull TuiStats getStats() {
+    return myStats;
+  }
+
+  /**
+   * Returns the generation of the directory, it changes every time VFS reports a change in the directory.
+   * Caches of directory data use generation to detect that cached data is outdated.
+   */
+  long getDirGeneration(@NotNull String path) {
+    Long generation = myDirGenerations.get(path);
+    if (generation != null) {
+      return generation;
+    }
+    if (myDirGenerations.size() >= MAX_DIR_GENERATIONS) {
+      trimDirGenerations();
+    }
+    return myDirGenerations.computeIfAbsent(path, p -> myGeneration.incrementAndGet());
+  }
+
+  /**
+   * Drops generations of directories which are not shown in Dir buffers. A dropped directory gets
+   * a new generation when it is listed again, so its cached data is treated as outdated.
+   */
+  private void trimDirGenerations() {
+    Set<String> shownDirs = new HashSet<>();
+    for (TuiFile file : TuiFS.getInstance().getOpenFiles()) {
+      VirtualFile dir = Dir.getBufferDir(file);
+      if (dir != null) {
+        shownDirs.add(dir.getPath());
+      }
+    }
+    myDirGenerations.keySet().retainAll(shownDirs);
+  }
+
+  void dirsChanged(@NotNull Collection<String> paths) {
+    for (String path : paths) {
+      myDirGenerations.computeIfPresent(path, (p, generation) -> myGeneration.incrementAndGet());
+    }
+  }
+
+  /**
+   * Updates the set of directories watched by {@link DirWatcher}: local directories of open
+   * Dir buffers which are outside of project content and therefore not watched by the IDE.
+   */
+  void updateWatchedDirs() {
+    Set<Path> dirs = new HashSet<>();
+    if (Registry.is("tui.dir.watcher", true)) {
+      for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+        ProjectFileIndex fileIndex = ProjectFileIndex.getInstance(project);
+        for (VirtualFile file : FileEditorManager.getInstance(project).getOpenFiles()) {
+          VirtualFile dir = Dir.getBufferDir(file);
+          if (dir != null && dir.isValid() && dir.isInLocalFileSystem() && !fileIndex.isInContent(dir)) {
+            dirs.add(dir.toNioPath());
+          }
+        }
+      }
+    }
+    myDirWatcher.setWatchedDirs(dirs);
+  }
+
+  public static class TuiFileEditorListener implements FileEditorManagerListener {
+    @Override
+    public void fileOpened(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+      if (isLoaded() && file instanceof TuiFile) {
+        if (TuiFS.getInstance().reopenFile((TuiFile) file)) {
+          // reopened from the switcher or as a closed tab
+          Dir.restore((TuiFile) file, getEditor(source, file));
+        }
+        getInstance().updateWatchedDirs();
+      }
+    }
+
+    @Override
+    public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+      if (isLoaded() && file instanceof TuiFile) {
+        if (!source.isFileOpen(file)) {
+          TuiFS.getInstance().closeFile((TuiFile) file);
+          Dir.release((TuiFile) file);
+        }
+        getInstance().updateWatchedDirs();
+      }
+    }
+
+    private static @Nullable Editor getEditor(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+      for (FileEditor fileEditor : source.getEditors(file)) {
+        if (fileEditor instanceof TextEditor) {
+          return ((TextEditor) fileEditor).getEditor();
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Passes an editor action to the Tui typing handler as the given key
+   */
   static class TuiEditorActionHandler extends EditorActionHandler {
     private final EditorActionHandler myOriginal;
+    private final char myKey;
+    private final boolean myEditingOnly;
 
-    TuiEditorActionHandler(EditorActionHandler original) {
+    /**
+     * @param editingOnly if true, the action is passed only in editing mode and only with a single caret,
+     *                    so that e.g. Escape still removes extra carets
+     */
+    TuiEditorActionHandler(EditorActionHandler original, char key, boolean editingOnly) {
       myOriginal = original;
+      myKey = key;
+      myEditingOnly = editingOnly;
+    }
+
+    private boolean isHandledByTui(@NotNull Editor editor) {
+      VirtualFile file = editor.getVirtualFile();
+      if (!isLoaded() || !TuiService.getInstance().isTui(file)) {
+        return false;
+      }
+      return !myEditingOnly || Tui.isEditing(file) && editor.getCaretModel().getCaretCount() == 1;
     }
 
     @Override
     protected boolean isEnabledForCaret(@NotNull Editor editor, @NotNull Caret caret, DataContext dataContext) {
-      if (!isLoaded()) {
-        return myOriginal.isEnabled(editor, caret, dataContext);
-      }
-      if (TuiService.getInstance().isTui(editor.getVirtualFile())) {
+      if (isHandledByTui(editor)) {
         return true;
       }
       return myOriginal.isEnabled(editor, caret, dataContext);
@@ -109,16 +271,23 @@ public final class TuiService {
 
     @Override
     protected void doExecute(@NotNull Editor editor, @Nullable Caret caret, DataContext dataContext) {
-      if (isLoaded() && TuiService.getInstance().isTui(editor.getVirtualFile())) {
-        TuiTypingHandler.getInstance().execute(editor, '\n', dataContext);
+      if (isHandledByTui(editor)) {
+        TypedActionHandler handler = Tui.getTypingHandler(editor.getVirtualFile());
+        if (handler != null) {
+          handler.execute(editor, myKey, dataContext);
+        }
         return;
       }
       myOriginal.execute(editor, caret, dataContext);
     }
 
+    /**
+     * Tui handlers run once per editor whatever the number of carets, the original handler is called without a caret
+     * and runs for each caret itself
+     */
     @Override
     public boolean runForAllCarets() {
-      return myOriginal.runForAllCarets();
+      return false;
     }
   }
 }
@@ -0,0 +1,132 @@
+package tui;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.registry.RegistryValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of render phases. A sample increments the counter of its log-linear bucket,
+ * so recording takes no locks and allocates nothing, and percentiles are exact to a quarter of the value.
+ * Phases slower than the tui.stats.log.threshold.ms registry value are logged.
+ */
+final class TuiStats {
+  private static final Logger LOG = Logger.getInstance(TuiStats.class);
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+  private static final Phase[] PHASES = Phase.values();
+
+  enum Phase {
+    RENDER("render"),
+    LIST("list children"),
+    SORT("sort"),
+    PRINT("build text"),
+    DOCUMENT("update document"),
+    MARKUP("update markup");
+
+    final String title;
+
+    Phase(@NotNull String title) {
+      this.title = title;
+    }
+  }
+
+  // counts of samples in microseconds, BUCKETS per phase
+  private final AtomicLongArray myCounts = new AtomicLongArray(PHASES.length * BUCKETS);
+  private final AtomicLongArray myMax = new AtomicLongArray(PHASES.length);
+  private final RegistryValue myLogThreshold = Registry.get("tui.stats.log.threshold.ms");
+
+  /**
+   * Records the time since startNanos obtained from {@link System#nanoTime()}
+   */
+  void record(@NotNull Phase phase, long startNanos) {
+    long micros = Math.max(0, (System.nanoTime() - startNanos) / 1000);
+    int idx = phase.ordinal();
+    myCounts.incrementAndGet(idx * BUCKETS + getBucket(micros));
+    long max;
+    while ((max = myMax.get(idx)) < micros && !myMax.compareAndSet(idx, max, micros)) {
+    }
+    int threshold = myLogThreshold.asInteger();
+    if (threshold >= 0 && micros >= threshold * 1000L) {
+      LOG.info(phase.title + " took " + micros / 1000 + " ms");
+    }
+  }
+
+  void reset() {
+    for (int i = 0; i < myCounts.length(); i++) {
+      myCounts.set(i, 0);
+    }
+    for (int i = 0; i < myMax.length(); i++) {
+      myMax.set(i, 0);
+    }
+  }
+
+  /**
+   * Prints a table of sample counts and latency percentiles of all phases
+   */
+  void print(@NotNull StringBuilder text) {
+    text.append(String.format("%-16s %8s %9s %9s %9s %9s\n", "phase", "count", "p50 ms", "p95 ms", "p99 ms", "max ms"));
+    for (Phase phase : PHASES) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = myCounts.get(phase.ordinal() * BUCKETS + i);
+        total += counts[i];
+      }
+      long max = myMax.get(phase.ordinal());
+      text.append(String.format("%-16s %8d %9s %9s %9s %9s\n", phase.title, total,
+                                formatMillis(getPercentile(counts, total, 0.5, max)),
+                                formatMillis(getPercentile(counts, total, 0.95, max)),
+                                formatMillis(getPercentile(counts, total, 0.99, max)),
+                                formatMillis(max)));
+    }
+  }
+
+  /**
+   * Returns the upper bound of the bucket containing the percentile, or -1 if there are no samples
+   */
+  private static long getPercentile(long @NotNull [] counts, long total, double percentile, long max) {
+    if (total == 0) {
+      return -1;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile * total));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(getBucketStart(i + 1) - 1, max);
+      }
+    }
+    return max;
+  }
+
+  private static @NotNull String formatMillis(long micros) {
+    return micros < 0 ? "-" : String.format("%.2f", micros / 1000.0);
+  }
+
+  /**
+   * Values below SUB_BUCKETS have a bucket each, every further power of two is split into SUB_BUCKETS buckets
+   */
+  private static int getBucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long getBucketStart(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    if (exp >= 63) {
+      return Long.MAX_VALUE;
+    }
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exp - SUB_BUCKET_BITS);
+  }
+}
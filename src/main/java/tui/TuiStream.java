@@ -0,0 +1,182 @@
+package tui;
+
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.util.concurrency.EdtExecutorService;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends chunks pushed by a background producer to the end of the Tui file. Chunks are
+ * applied on EDT at most once per frame and at most {@link #MAX_LINES_PER_FRAME} lines at a time.
+ * When too many chunks are pending, the producer is blocked until EDT catches up.
+ * Frames run in the non-modal state only, so the buffer is never written while a modal dialog is shown.
+ *
+ * @see Tui#stream(TuiFile, Editor)
+ */
+final class TuiStream {
+  private static final int FRAME_MS = 16;
+  private static final int MAX_PENDING_CHUNKS = 256;
+  private static final int MAX_LINES_PER_FRAME = 10_000;
+
+  private final TuiFile myFile;
+  private final Editor myEditor;
+  private final BlockingQueue<Chunk> myChunks = new LinkedBlockingQueue<>(MAX_PENDING_CHUNKS);
+  private volatile ScheduledFuture<?> myFlush;
+  private volatile boolean myCancelled;
+  private volatile Runnable myOnFinished;
+
+  TuiStream(@NotNull TuiFile file, @Nullable Editor editor) {
+    myFile = file;
+    myEditor = editor;
+    scheduleFlush();
+  }
+
+  /**
+   * Adds the chunk to the stream, blocks while too many chunks are waiting to be applied.
+   * Returns false if the stream is cancelled and the chunk is dropped. A blocked fork-join worker
+   * is compensated by its pool, so other tasks of the pool keep running.
+   */
+  boolean push(@NotNull Chunk chunk) {
+    PushBlocker blocker = new PushBlocker(chunk);
+    try {
+      ForkJoinPool.managedBlock(blocker);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return blocker.myPushed;
+  }
+
+  /**
+   * Signals that there will be no more chunks, the callback runs on EDT after all pushed chunks are applied
+   */
+  void finish(@Nullable Runnable onFinished) {
+    myOnFinished = onFinished != null ? onFinished : () -> {};
+  }
+
+  void cancel() {
+    myCancelled = true;
+    myFlush.cancel(false);
+    myChunks.clear();
+  }
+
+  boolean isCancelled() {
+    return myCancelled;
+  }
+
+  private void flush() {
+    if (myCancelled) {
+      return;
+    }
+    if (!myFile.isValid() || !FileEditorManager.getInstance(myFile.getProject()).isFileOpen(myFile)) {
+      cancel();
+      return;
+    }
+    // read before draining: chunks pushed before finish() are guaranteed to be in the queue
+    Runnable onFinished = myOnFinished;
+    List<Chunk> chunks = new ArrayList<>();
+    int lines = 0;
+    Chunk chunk;
+    while (lines < MAX_LINES_PER_FRAME && (chunk = myChunks.poll()) != null) {
+      chunks.add(chunk);
+      lines += chunk.getLineCount();
+    }
+    if (!chunks.isEmpty()) {
+      append(chunks);
+    }
+    if (onFinished != null && myChunks.isEmpty()) {
+      onFinished.run();
+    } else if (!myCancelled) {
+      scheduleFlush();
+    }
+  }
+
+  private void scheduleFlush() {
+    myFlush = EdtExecutorService.getScheduledExecutorInstance().schedule(this::flush, ModalityState.NON_MODAL, FRAME_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private void append(@NotNull List<Chunk> chunks) {
+    Tui.modifyDocument(myFile, doc -> {
+      StringBuilder text = new StringBuilder();
+      List<Tui.Highlighter> highlighters = new ArrayList<>();
+      int start = doc.getTextLength();
+      for (Chunk chunk : chunks) {
+        int chunkStart = start + text.length();
+        for (Tui.Highlighter h : chunk.highlighters) {
+          Tui.Highlighter shifted = new Tui.Highlighter();
+          shifted.startOffset = chunkStart + h.startOffset;
+          shifted.endOffset = chunkStart + h.endOffset;
+          shifted.layer = h.layer;
+          shifted.attributes = h.attributes;
+          highlighters.add(shifted);
+        }
+        text.append(chunk.text);
+      }
+      doc.insertString(start, text);
+      if (myEditor != null && !myEditor.isDisposed()) {
+        Tui.addHighlighters(myEditor, highlighters);
+      }
+    });
+    for (Chunk chunk : chunks) {
+      if (chunk.onAppend != null) {
+        chunk.onAppend.run();
+      }
+    }
+  }
+
+  private final class PushBlocker implements ForkJoinPool.ManagedBlocker {
+    private final Chunk myChunk;
+    private boolean myPushed;
+
+    PushBlocker(@NotNull Chunk chunk) {
+      myChunk = chunk;
+    }
+
+    @Override
+    public boolean block() throws InterruptedException {
+      ProgressManager.checkCanceled();
+      myPushed = !myCancelled && myChunks.offer(myChunk, FRAME_MS, TimeUnit.MILLISECONDS);
+      return isReleasable();
+    }
+
+    @Override
+    public boolean isReleasable() {
+      if (!myPushed && !myCancelled) {
+        myPushed = myChunks.offer(myChunk);
+      }
+      return myPushed || myCancelled;
+    }
+  }
+
+  /**
+   * Lines with highlighters, highlighter offsets are relative to the chunk start
+   */
+  static final class Chunk {
+    final StringBuilder text = new StringBuilder();
+    final List<Tui.Highlighter> highlighters = new ArrayList<>();
+    /**
+     * Runs on EDT once the chunk is appended to the document
+     */
+    Runnable onAppend;
+
+    private int getLineCount() {
+      int result = 0;
+      for (int i = 0; i < text.length(); i++) {
+        if (text.charAt(i) == '\n') {
+          result++;
+        }
+      }
+      return result;
+    }
+  }
+}
@@ -47,7 +47,7 @@ public class TuiTypingHandler extends TypedHandlerDelegate implements TypedActio
       return;
     }
     VirtualFile file = editor.getVirtualFile();
-    if (!TuiService.getInstance().isTui(file)) {
+    if (!TuiService.getInstance().isTui(file) || Tui.isEditing(file)) {
       myOriginal.execute(editor, charTyped, dataContext);
       return;
     }
@@ -65,7 +65,7 @@ public class TuiTypingHandler extends TypedHandlerDelegate implements TypedActio
       return super.beforeCharTyped(c, project, editor, file, fileType);
     }
     VirtualFile vfile = editor.getVirtualFile();
-    if (!TuiService.getInstance().isTui(vfile)) {
+    if (!TuiService.getInstance().isTui(vfile) || Tui.isEditing(vfile)) {
       return super.beforeCharTyped(c, project, editor, file, fileType);
     }
     return Result.STOP;
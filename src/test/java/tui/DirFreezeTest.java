@@ -0,0 +1,213 @@
+package tui;
+
+import com.intellij.ide.DataManager;
+import com.intellij.openapi.application.ApplicationListener;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManagerListener;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.ui.TestDialog;
+import com.intellij.openapi.ui.TestDialogManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.UserDataHolder;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.impl.VfsRootAccess;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+import com.intellij.util.TimeoutUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Opens real directories of 10k and 100k files and drives the Dir keymap through {@link TuiTypingHandler}.
+ * Each action fails the test if a single EDT event or a single write action takes longer than the budget.
+ * Time spent in background renders is not counted, neither is time of background tasks which run synchronously
+ * on EDT in headless mode. Budgets are set with -Dtui.perf.edtBudgetMs and -Dtui.perf.writeBudgetMs.
+ */
+public class DirFreezeTest extends BasePlatformTestCase {
+  private static final long EDT_BUDGET_MS = Long.getLong("tui.perf.edtBudgetMs", 300);
+  private static final long WRITE_BUDGET_MS = Long.getLong("tui.perf.writeBudgetMs", 100);
+  private static final long TIMEOUT_MS = 60_000;
+
+  private final List<String> myMeasurements = new ArrayList<>();
+  private final List<String> myViolations = new ArrayList<>();
+  private TestDialog myOldTestDialog;
+  private int myWriteDepth;
+  private long myWriteStart;
+  private long myMaxWriteNanos;
+  private int myTaskDepth;
+  private long myTaskStart;
+  private long myTaskNanos;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOldTestDialog = TestDialogManager.setTestDialog(TestDialog.YES);
+    ApplicationManager.getApplication().addApplicationListener(new ApplicationListener() {
+      @Override
+      public void writeActionStarted(@NotNull Object action) {
+        if (myWriteDepth++ == 0) {
+          myWriteStart = System.nanoTime();
+        }
+      }
+
+      @Override
+      public void writeActionFinished(@NotNull Object action) {
+        if (--myWriteDepth == 0) {
+          myMaxWriteNanos = Math.max(myMaxWriteNanos, System.nanoTime() - myWriteStart);
+        }
+      }
+    }, getTestRootDisposable());
+    ApplicationManager.getApplication().getMessageBus().connect(getTestRootDisposable()).subscribe(ProgressManagerListener.TOPIC, new ProgressManagerListener() {
+      @Override
+      public void beforeTaskStart(@NotNull Task task, @NotNull ProgressIndicator indicator) {
+        if (ApplicationManager.getApplication().isDispatchThread() && myTaskDepth++ == 0) {
+          myTaskStart = System.nanoTime();
+        }
+      }
+
+      @Override
+      public void afterTaskFinished(@NotNull Task task) {
+        if (ApplicationManager.getApplication().isDispatchThread() && myTaskDepth > 0 && --myTaskDepth == 0) {
+          myTaskNanos += System.nanoTime() - myTaskStart;
+        }
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      TestDialogManager.setTestDialog(myOldTestDialog);
+    } finally {
+      super.tearDown();
+    }
+  }
+
+  public void testDir10k() throws IOException {
+    checkKeymap(10_000);
+  }
+
+  public void testDir100k() throws IOException {
+    checkKeymap(100_000);
+  }
+
+  private void checkKeymap(int size) throws IOException {
+    VirtualFile dir = createDir(size);
+    Dir.openAsText(getProject(), dir, null);
+    Editor editor = FileEditorManager.getInstance(getProject()).getSelectedTextEditor();
+    assertNotNull(editor);
+    VirtualFile file = editor.getVirtualFile();
+    // opening includes creation of the editor, so it is not checked
+    waitFor("open", () -> getText(editor).startsWith(dir.getPath() + ":"));
+
+    type(editor, 'j', size, () -> true);
+    String name = getLineUnderCaret(editor);
+    VirtualFile marked = dir.findChild(name);
+    assertNotNull(name, marked);
+    type(editor, 'm', size, () -> true);
+
+    UserDataHolder data = Tui.getTuiData(file);
+    type(editor, 'g', size, () -> Tui.getTuiData(file) != data);
+
+    type(editor, 'D', size, () -> !marked.isValid() && !getText(editor).contains("\n" + name + "\n"));
+
+    VirtualFile parent = dir.getParent();
+    type(editor, 'u', size, () -> getText(editor).startsWith(parent.getPath() + ":"));
+
+    if (!myViolations.isEmpty()) {
+      fail(String.join("\n", myViolations) + "\n\nAll actions:\n" + String.join("\n", myMeasurements));
+    }
+  }
+
+  /**
+   * Types the key and waits for its effect, then checks the longest EDT event and the longest write action
+   */
+  private void type(@NotNull Editor editor, char key, int size, @NotNull BooleanSupplier done) {
+    myMaxWriteNanos = 0;
+    long typeNanos = measureEdt(
+      () -> TuiTypingHandler.getInstance().execute(editor, key, DataManager.getInstance().getDataContext(editor.getContentComponent())));
+    long edtMs = Math.max(typeNanos, waitFor(String.valueOf(key), done)) / 1_000_000;
+    long writeMs = myMaxWriteNanos / 1_000_000;
+    myMeasurements.add(String.format("%d files: '%c' longest EDT event %d ms, longest write action %d ms", size, key, edtMs, writeMs));
+    if (edtMs > EDT_BUDGET_MS) {
+      myViolations.add(String.format("%d files: '%c' blocked EDT for %d ms, budget %d ms", size, key, edtMs, EDT_BUDGET_MS));
+    }
+    if (writeMs > WRITE_BUDGET_MS) {
+      myViolations.add(String.format("%d files: '%c' ran a write action for %d ms, budget %d ms", size, key, writeMs, WRITE_BUDGET_MS));
+    }
+  }
+
+  /**
+   * Dispatches EDT events one by one until the condition holds, returns the time of the longest event
+   */
+  private long waitFor(@NotNull String what, @NotNull BooleanSupplier condition) {
+    long maxNanos = 0;
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (!condition.getAsBoolean()) {
+      boolean[] dispatched = new boolean[1];
+      maxNanos = Math.max(maxNanos, measureEdt(() -> dispatched[0] = dispatchNextEvent()));
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for " + what);
+      }
+      if (!dispatched[0]) {
+        TimeoutUtil.sleep(1);
+      }
+    }
+    return maxNanos;
+  }
+
+  /**
+   * Runs the EDT code and returns its time without the time of background tasks it ran synchronously
+   */
+  private long measureEdt(@NotNull Runnable runnable) {
+    long taskNanos = myTaskNanos;
+    long start = System.nanoTime();
+    runnable.run();
+    return System.nanoTime() - start - (myTaskNanos - taskNanos);
+  }
+
+  private static boolean dispatchNextEvent() {
+    try {
+      return PlatformTestUtil.dispatchNextEventIfAny() != null;
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private @NotNull VirtualFile createDir(int size) throws IOException {
+    Path root = Files.createTempDirectory("tui-freeze");
+    Disposer.register(getTestRootDisposable(), () -> FileUtil.delete(root));
+    VfsRootAccess.allowRootAccess(getTestRootDisposable(), root.toString());
+    Path dir = Files.createDirectory(root.resolve("dir"));
+    for (int i = 0; i < size; i++) {
+      Files.createFile(dir.resolve(String.format("file-%06d.txt", i)));
+    }
+    VirtualFile result = LocalFileSystem.getInstance().refreshAndFindFileByNioFile(dir);
+    assertNotNull(result);
+    VfsUtil.markDirtyAndRefresh(false, true, true, result);
+    return result;
+  }
+
+  private static @NotNull String getText(@NotNull Editor editor) {
+    return editor.getDocument().getText();
+  }
+
+  private static @NotNull String getLineUnderCaret(@NotNull Editor editor) {
+    Document doc = editor.getDocument();
+    int line = doc.getLineNumber(editor.getCaretModel().getOffset());
+    return doc.getText().substring(doc.getLineStartOffset(line), doc.getLineEndOffset(line));
+  }
+}